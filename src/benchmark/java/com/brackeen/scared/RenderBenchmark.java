@@ -0,0 +1,83 @@
+package com.brackeen.scared;
+
+import com.brackeen.app.App;
+import com.brackeen.app.view.Scene;
+
+import java.io.IOException;
+
+/**
+ * Times {@link SoftRender3D#render()} on every level, with textures on the heap and off-heap.
+ * Each level is drawn from the player's start location, facing several directions. Run it with
+ * "gradlew benchmark". It needs a display, since the app is an applet.
+ */
+public class RenderBenchmark {
+
+    private static final int VIEW_WIDTH = 640;
+    private static final int VIEW_HEIGHT = 480;
+    private static final int NUM_DIRECTIONS = 16;
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws IOException {
+        new App() {
+            @Override
+            public Scene createFirstScene() {
+                return null;
+            }
+        };
+
+        long heapNanos = run(false);
+        long offHeapNanos = run(true);
+        System.out.println("Rendering " + VIEW_WIDTH + "x" + VIEW_HEIGHT + ", " + GameScene.NUM_LEVELS +
+                " levels x " + NUM_DIRECTIONS + " directions (best of " + ROUNDS + ")");
+        System.out.println("heap:     " + formatTime(heapNanos));
+        System.out.println("off-heap: " + formatTime(offHeapNanos));
+    }
+
+    /**
+     * Gets the best time, in nanoseconds, to draw every level in every direction.
+     */
+    private static long run(boolean offHeap) throws IOException {
+        TextureManager textureManager = new TextureManager(null, Long.MAX_VALUE);
+        textureManager.setOffHeap(offHeap);
+        LoadingScene.registerSprites(textureManager);
+        LoadingScene.registerWallTextures(textureManager);
+
+        SoftRender3D[] renderers = new SoftRender3D[GameScene.NUM_LEVELS];
+        for (int level = 0; level < GameScene.NUM_LEVELS; level++) {
+            Map map = new Map(textureManager, new MessageQueue(4), "/maps/level" + level + ".txt", null,
+                    new Stats());
+            textureManager.setLevelTextures(map.getTextureNames());
+            SoftRender3D renderer = new SoftRender3D(textureManager);
+            renderer.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+            renderer.load();
+            renderer.setMap(new MapSnapshot(map));
+            renderers[level] = renderer;
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long nanos = 0;
+            for (SoftRender3D renderer : renderers) {
+                MapSnapshot map = renderer.getMap();
+                for (int i = 0; i < NUM_DIRECTIONS; i++) {
+                    renderer.setCamera(map.getCameraX(), map.getCameraY(), map.getCameraZ(),
+                            i * 360f / NUM_DIRECTIONS);
+                    long startTime = System.nanoTime();
+                    renderer.render();
+                    nanos += System.nanoTime() - startTime;
+                }
+            }
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, nanos);
+            }
+        }
+        return best;
+    }
+
+    private static String formatTime(long nanos) {
+        int frames = GameScene.NUM_LEVELS * NUM_DIRECTIONS;
+        return String.format("%.2fms per frame (%.2fns per pixel)", nanos / 1000000.0 / frames,
+                (double) nanos / frames / (VIEW_WIDTH * VIEW_HEIGHT));
+    }
+}
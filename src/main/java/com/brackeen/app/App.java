@@ -12,9 +12,11 @@ import java.awt.Color;
 import java.awt.Container;
 import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.DisplayMode;
 import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Toolkit;
@@ -31,6 +33,7 @@ import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
 import java.awt.font.TextHitInfo;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.im.InputMethodRequests;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
@@ -77,11 +80,16 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
     }
 
     private static void log(String statement, boolean toSystemOut) {
-        if (toSystemOut) {
+        App app = App.getApp();
+        if (toSystemOut || app == null) {
             System.out.println(statement);
         }
+        if (app == null) {
+            // No app on this thread, like in unit tests
+            return;
+        }
 
-        List<String> log = App.getApp().getLog();
+        List<String> log = app.getLog();
 
         // Split on newlines
         int index = 0;
@@ -104,7 +112,9 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
     private String appName = "App";
     private BufferedImage iconImage;
     private final float simulationRate = 60;
-    private final float frameRate = 60;
+    // The maximum number of frames drawn per second, or 0 to match the display's refresh rate
+    private float frameRate = 0;
+    private float displayRefreshRate = 60;
     private float audioSampleRate = 44100;
     private boolean gameLoopRunning = false;
     private long lastTime = 0;
@@ -117,7 +127,11 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
     private boolean autoPixelScale = false;
     private int autoPixelScaleBaseWidth = 320;
     private int autoPixelScaleBaseHeight = 240;
-    private BufferedImage pixelScaleBufferedImage;
+    // The scene is drawn here when scaled, or when only part of it is redrawn
+    private BufferedImage sceneBufferedImage;
+    private boolean sceneBufferedImageValid = false;
+    private View lastDrawnScene;
+    private boolean redrawAll = true;
 
     private final List<String> log = new ArrayList<>();
 
@@ -130,6 +144,9 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
     private Canvas canvas;
     private int mouseX = -1;
     private int mouseY = -1;
+    private View cursorPickScene;
+    private int cursorPickX;
+    private int cursorPickY;
 
     public App() {
         APP.set(this);
@@ -177,10 +194,14 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
             bufferStrategy.dispose();
             bufferStrategy = null;
         }
-        loadedAudio.clear();
+        synchronized (loadedAudio) {
+            loadedAudio.clear();
+        }
         imageCache.clear();
         prevViewsWithTouchInside.clear();
         currViewsWithTouchInside.clear();
+        cursorPickScene = null;
+        lastDrawnScene = null;
         log.clear();
         canvas = null;
         removeAll();
@@ -318,6 +339,7 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
 
     private void doTick() {
         long tickTime = System.nanoTime();
+        float frameRate = this.frameRate > 0 ? this.frameRate : displayRefreshRate;
         if (tickTime - lastTickTime < 1000000000 / frameRate) {
             if (tickTime - lastTickTime < 1000000000 / frameRate - 2000000) {
                 try {
@@ -367,12 +389,14 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
             if (bufferStrategy == null) {
                 canvas = null;
             } else {
+                redrawAll = true;
                 canvas.addMouseListener(this);
                 canvas.addMouseMotionListener(this);
                 canvas.addKeyListener(this);
                 canvas.addFocusListener(this);
                 canvas.setFocusTraversalKeysEnabled(false);
                 canvas.requestFocus();
+                displayRefreshRate = getDisplayRefreshRate();
                 lastTime = System.nanoTime();
                 remainingTime = 0;
             }
@@ -380,6 +404,7 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
         if (bufferStrategy != null) {
             // Resize
             if (needsResize) {
+                cursorPickScene = null;
                 for (Scene scene : sceneStack) {
                     scene.notifySuperviewDirty();
                     scene.setSize(getWidthForScene(), getHeightForScene());
@@ -405,56 +430,47 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
                 }
                 lastTime = System.nanoTime();
             }
-            View scene = null;
+            Scene scene = null;
             if (!sceneStack.isEmpty()) {
                 scene = sceneStack.peek();
             }
 
-            // Set cursor
-            Cursor cursor = Cursor.getDefaultCursor();
-            if (scene != null) {
-                View pick = scene.pick(mouseX, mouseY);
-                while (pick != null) {
-                    Cursor pickCursor = pick.getCursor();
-                    if (pickCursor != null) {
-                        cursor = pickCursor;
-                        break;
+            // Set cursor, if the mouse moved or the scene changed
+            if (scene != cursorPickScene || mouseX != cursorPickX || mouseY != cursorPickY) {
+                cursorPickScene = scene;
+                cursorPickX = mouseX;
+                cursorPickY = mouseY;
+                Cursor cursor = Cursor.getDefaultCursor();
+                if (scene != null) {
+                    View pick = scene.pick(mouseX, mouseY);
+                    while (pick != null) {
+                        Cursor pickCursor = pick.getCursor();
+                        if (pickCursor != null) {
+                            cursor = pickCursor;
+                            break;
+                        }
+                        pick = pick.getSuperview();
                     }
-                    pick = pick.getSuperview();
                 }
-            }
-            if (getCursor() != cursor) {
-                setCursor(cursor);
+                if (getCursor() != cursor) {
+                    setCursor(cursor);
+                }
             }
 
             // Draw
-            Graphics2D g = (Graphics2D) bufferStrategy.getDrawGraphics();
+            if (scene != null) {
+                scene.onFrame();
+            }
             if (scene == null) {
+                Graphics2D g = (Graphics2D) bufferStrategy.getDrawGraphics();
                 g.setColor(Color.BLACK);
                 g.fillRect(0, 0, getWidth(), getHeight());
-            } else if (pixelScale > 1) {
-                if (pixelScaleBufferedImage == null ||
-                        pixelScaleBufferedImage.getWidth() != getWidthForScene() ||
-                        pixelScaleBufferedImage.getHeight() != getHeightForScene()) {
-                    pixelScaleBufferedImage = new BufferedImage(getWidthForScene(),
-                            getHeightForScene(),
-                            BufferedImage.TYPE_INT_RGB);
-                }
-                Graphics2D g2 = pixelScaleBufferedImage.createGraphics();
-                scene.draw(g2);
-                g2.dispose();
-                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                        RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
-                g.setTransform(AffineTransform.getScaleInstance(pixelScale, pixelScale));
-                g.setComposite(AlphaComposite.Src);
-                g.drawImage(pixelScaleBufferedImage, 0, 0, null);
+                g.dispose();
+                bufferStrategy.show();
+                lastDrawnScene = null;
             } else {
-                pixelScaleBufferedImage = null;
-                g.setComposite(AlphaComposite.SrcOver);
-                scene.draw(g);
+                drawScene(scene);
             }
-            g.dispose();
-            bufferStrategy.show();
 
             // Frame rate
             actualFrameRateTickCount++;
@@ -471,6 +487,72 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
         }
     }
 
+    /**
+     * Draws the areas of the scene that changed since the last frame (see
+     * {@link View#setDirty()}). If nothing changed, nothing is drawn, and the previous frame stays
+     * on screen.
+     */
+    private void drawScene(View scene) {
+        int width = getWidthForScene();
+        int height = getHeightForScene();
+        boolean drawAll = redrawAll || scene != lastDrawnScene ||
+                bufferStrategy.contentsLost() || bufferStrategy.contentsRestored();
+        Rectangle dirtyBounds = null;
+        if (!drawAll) {
+            Rectangle2D.Float dirtyRect = scene.getDirtyRect();
+            if (dirtyRect == null) {
+                return;
+            }
+            // Round out, with a pixel of margin for images drawn at fractional locations
+            int x1 = Math.max(0, (int) Math.floor(dirtyRect.x) - 1);
+            int y1 = Math.max(0, (int) Math.floor(dirtyRect.y) - 1);
+            int x2 = Math.min(width, (int) Math.ceil(dirtyRect.x + dirtyRect.width) + 1);
+            int y2 = Math.min(height, (int) Math.ceil(dirtyRect.y + dirtyRect.height) + 1);
+            if (x1 >= x2 || y1 >= y2) {
+                scene.clearDirty();
+                return;
+            }
+            dirtyBounds = new Rectangle(x1, y1, x2 - x1, y2 - y1);
+            drawAll = x1 == 0 && y1 == 0 && x2 == width && y2 == height;
+        }
+        scene.clearDirty();
+        redrawAll = false;
+        lastDrawnScene = scene;
+
+        Graphics2D g = (Graphics2D) bufferStrategy.getDrawGraphics();
+        if (pixelScale == 1 && drawAll) {
+            // Draw directly to the screen. The scene image is now out of date.
+            sceneBufferedImageValid = false;
+            g.setComposite(AlphaComposite.SrcOver);
+            scene.draw(g);
+        } else {
+            // Draw to the scene image, then draw the image to the screen. The back buffer isn't
+            // guaranteed to contain the previous frame, so the whole image is drawn.
+            if (sceneBufferedImage == null ||
+                    sceneBufferedImage.getWidth() != width ||
+                    sceneBufferedImage.getHeight() != height) {
+                sceneBufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                sceneBufferedImageValid = false;
+            }
+            Graphics2D g2 = sceneBufferedImage.createGraphics();
+            if (sceneBufferedImageValid && !drawAll) {
+                g2.clip(dirtyBounds);
+            }
+            g2.setColor(Color.BLACK);
+            g2.fillRect(0, 0, width, height);
+            scene.draw(g2);
+            g2.dispose();
+            sceneBufferedImageValid = true;
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            g.setTransform(AffineTransform.getScaleInstance(pixelScale, pixelScale));
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(sceneBufferedImage, 0, 0, null);
+        }
+        g.dispose();
+        bufferStrategy.show();
+    }
+
     public String getAppName() {
         return appName;
     }
@@ -491,6 +573,38 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
         return actualFrameRate;
     }
 
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Sets the maximum number of frames drawn per second, independent of the simulation rate. The
+     * default, 0, matches the display's refresh rate (or the simulation rate, if the refresh rate
+     * is unknown).
+     */
+    public void setFrameRate(float frameRate) {
+        this.frameRate = Math.max(0, frameRate);
+    }
+
+    private float getDisplayRefreshRate() {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc != null) {
+            DisplayMode displayMode = gc.getDevice().getDisplayMode();
+            if (displayMode != null && displayMode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN) {
+                return displayMode.getRefreshRate();
+            }
+        }
+        return simulationRate;
+    }
+
+    /**
+     * Gets the number of times per second the scene is ticked. Frames may be drawn more often (see
+     * {@link #setFrameRate(float)}); scenes can interpolate in {@link Scene#onFrame()}.
+     */
+    public float getSimulationRate() {
+        return simulationRate;
+    }
+
     public int getPixelScale() {
         return pixelScale;
     }
@@ -549,21 +663,25 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
 
     /**
      * Get an audio file. The audio is cached in memory. If the audio couldn't be loaded, a blank
-     * audio buffer is returned - this method never returns null.
+     * audio buffer is returned - this method never returns null. Thread-safe, so that a
+     * simulation thread can play sounds.
      */
     public AudioBuffer getAudio(String audioName) {
-        AudioBuffer audio = loadedAudio.get(audioName);
-        if (audio == null && audioName != null) {
-            try {
-                URL url = getResource(audioName);
-                if (url != null) {
-                    audio = AudioBuffer.read(url);
-                    if (audio != null) {
-                        loadedAudio.put(audioName, audio);
+        AudioBuffer audio;
+        synchronized (loadedAudio) {
+            audio = loadedAudio.get(audioName);
+            if (audio == null && audioName != null) {
+                try {
+                    URL url = getResource(audioName);
+                    if (url != null) {
+                        audio = AudioBuffer.read(url);
+                        if (audio != null) {
+                            loadedAudio.put(audioName, audio);
+                        }
                     }
+                } catch (IOException ex) {
+                    // Do nothing
                 }
-            } catch (IOException ex) {
-                // Do nothing
             }
         }
 
@@ -575,7 +693,9 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
     }
 
     public void unloadAudio(String audioName) {
-        loadedAudio.remove(audioName);
+        synchronized (loadedAudio) {
+            loadedAudio.remove(audioName);
+        }
     }
 
     /**
@@ -867,6 +987,21 @@ public abstract class App extends Applet implements MouseListener, MouseMotionLi
             }
         }
 
+        @Override
+        public void paint(Graphics g) {
+            // Only parts of the scene are drawn each frame, so the whole scene is drawn on the
+            // next frame instead of clearing the canvas here.
+            App app = getApp();
+            if (app != null) {
+                app.redrawAll = true;
+            }
+        }
+
+        @Override
+        public void update(Graphics g) {
+            paint(g);
+        }
+
         @Override
         public InputMethodRequests getInputMethodRequests() {
             return inputMethodRequests;
@@ -43,11 +43,33 @@ public class BitmapFont {
         return charHeight;
     }
 
-    public boolean canDisplay(char ch) {
+    public int getCharWidth() {
+        return charWidth;
+    }
+
+    /**
+     * Gets the image containing the glyphs, side by side, each getCharWidth() pixels wide.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Gets the index of a char's glyph in the image, or -1 if the char can't be displayed.
+     */
+    public int getGlyphIndex(char ch) {
         if (Character.isLowerCase(ch) && !hasLowercase) {
             ch = Character.toUpperCase(ch);
         }
-        return (ch >= firstChar && ch < firstChar + numChars);
+        if (ch >= firstChar && ch < firstChar + numChars) {
+            return ch - firstChar;
+        } else {
+            return -1;
+        }
+    }
+
+    public boolean canDisplay(char ch) {
+        return getGlyphIndex(ch) >= 0;
     }
 
     public void drawString(Graphics2D g, String s) {
@@ -55,12 +77,9 @@ public class BitmapFont {
             int x = 0;
             int y = 0;
             for (int i = 0; i < s.length(); i++) {
-                char ch = s.charAt(i);
-                if (Character.isLowerCase(ch) && !hasLowercase) {
-                    ch = Character.toUpperCase(ch);
-                }
-                if (ch >= firstChar && ch < firstChar + numChars) {
-                    int charX = (ch - firstChar) * charWidth;
+                int glyphIndex = getGlyphIndex(s.charAt(i));
+                if (glyphIndex >= 0) {
+                    int charX = glyphIndex * charWidth;
                     g.drawImage(image,
                             x, y, x + charWidth, y + charHeight,
                             charX, 0, charX + charWidth, charHeight, null);
@@ -0,0 +1,168 @@
+package com.brackeen.app;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a simulation on its own thread, at a fixed rate, so that slow frames don't change the
+ * simulation's timing. Like the App's game loop, if the simulation falls behind, at most
+ * MAX_TICKS ticks are run at once and the rest of the time is dropped.
+ * <p>
+ * Work for the simulation, like input events, is queued with {@link #invokeLater(Runnable)} and
+ * run before the next tick. Ticks and queued tasks run while holding the lock returned by
+ * {@link #getLock()}, so other threads can hold the lock to access the simulation's state.
+ * <p>
+ * The thread inherits the current thread's App, so {@link App#getApp()} works in the simulation.
+ */
+@SuppressWarnings("unused")
+public class SimulationThread {
+
+    private static final int MAX_TICKS = 4;
+
+    private final String name;
+    private final long tickNanos;
+    private final Runnable tick;
+    private final Object lock = new Object();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+    private volatile boolean running;
+    private volatile boolean paused;
+    private volatile long lastTickTime;
+
+    /**
+     * @param name The thread name.
+     * @param rate The number of ticks per second.
+     * @param tick Called once per tick, on the simulation thread.
+     */
+    public SimulationThread(String name, float rate, Runnable tick) {
+        this.name = name;
+        this.tickNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.tick = tick;
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runLoop();
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the thread, and waits for the current tick (if any) to finish. Queued tasks that
+     * haven't run are discarded.
+     */
+    public synchronized void stop() {
+        if (thread != null) {
+            running = false;
+            LockSupport.unpark(thread);
+            if (thread != Thread.currentThread()) {
+                boolean interrupted = false;
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            thread = null;
+            tasks.clear();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Pauses or resumes ticking. While paused, queued tasks wait until the simulation resumes, and
+     * time doesn't accumulate.
+     */
+    public void setPaused(boolean paused) {
+        if (this.paused != paused) {
+            this.paused = paused;
+            Thread thread = this.thread;
+            if (!paused && thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Gets the lock held while the simulation ticks.
+     */
+    public Object getLock() {
+        return lock;
+    }
+
+    /**
+     * Gets the duration of a tick, in nanoseconds.
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Gets the time (from {@link System#nanoTime()}) the last tick was due. Ticks run on or after
+     * their due time, one tick duration apart, so this is the time the simulation has reached.
+     */
+    public long getLastTickTime() {
+        return lastTickTime;
+    }
+
+    /**
+     * Queues a task to run on the simulation thread, before the next tick. Thread-safe.
+     */
+    public void invokeLater(Runnable task) {
+        tasks.add(task);
+    }
+
+    private void runLoop() {
+        long nextTickTime = System.nanoTime();
+        while (running) {
+            if (paused) {
+                LockSupport.parkNanos(tickNanos);
+                nextTickTime = System.nanoTime();
+                continue;
+            }
+
+            long time = System.nanoTime();
+            if (time < nextTickTime) {
+                LockSupport.parkNanos(nextTickTime - time);
+                continue;
+            }
+
+            int ticks = (int) ((time - nextTickTime) / tickNanos) + 1;
+            if (ticks > MAX_TICKS) {
+                ticks = MAX_TICKS;
+                nextTickTime = time - (ticks - 1) * tickNanos;
+            }
+            synchronized (lock) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (int i = 0; i < ticks && running; i++) {
+                    lastTickTime = nextTickTime;
+                    tick.run();
+                    nextTickTime += tickNanos;
+                }
+            }
+        }
+    }
+}
@@ -57,7 +57,11 @@ public class Button extends View implements MouseListener {
     }
 
     private void setState(State state) {
-        this.state = state;
+        if (this.state != state) {
+            setDirty();
+            this.state = state;
+            setDirty();
+        }
     }
 
     public BufferedImage getHoverImage() {
@@ -65,7 +69,9 @@ public class Button extends View implements MouseListener {
     }
 
     public void setHoverImage(BufferedImage hoverImage) {
+        setDirty();
         this.hoverImage = hoverImage;
+        setDirty();
     }
 
     public BufferedImage getHoverSelectedImage() {
@@ -73,7 +79,9 @@ public class Button extends View implements MouseListener {
     }
 
     public void setHoverSelectedImage(BufferedImage hoverSelectedImage) {
+        setDirty();
         this.hoverSelectedImage = hoverSelectedImage;
+        setDirty();
     }
 
     public boolean isSelected() {
@@ -81,7 +89,9 @@ public class Button extends View implements MouseListener {
     }
 
     public void setSelected(boolean isSelected) {
+        setDirty();
         this.selected = isSelected;
+        setDirty();
     }
 
     public BufferedImage getNormalImage() {
@@ -89,7 +99,9 @@ public class Button extends View implements MouseListener {
     }
 
     public void setNormalImage(BufferedImage normalImage) {
+        setDirty();
         this.normalImage = normalImage;
+        setDirty();
     }
 
     public BufferedImage getNormalSelectedImage() {
@@ -97,7 +109,9 @@ public class Button extends View implements MouseListener {
     }
 
     public void setNormalSelectedImage(BufferedImage normalSelectedImage) {
+        setDirty();
         this.normalSelectedImage = normalSelectedImage;
+        setDirty();
     }
 
     public BufferedImage getPressedImage() {
@@ -105,7 +119,9 @@ public class Button extends View implements MouseListener {
     }
 
     public void setPressedImage(BufferedImage pressedImage) {
+        setDirty();
         this.pressedImage = pressedImage;
+        setDirty();
     }
 
     public BufferedImage getPressedSelectedImage() {
@@ -113,7 +129,9 @@ public class Button extends View implements MouseListener {
     }
 
     public void setPressedSelectedImage(BufferedImage pressedSelectedImage) {
+        setDirty();
         this.pressedSelectedImage = pressedSelectedImage;
+        setDirty();
     }
 
     private BufferedImage getDisplayedImage() {
@@ -156,6 +174,18 @@ public class Button extends View implements MouseListener {
         }
     }
 
+    @Override
+    protected float getDrawWidth() {
+        BufferedImage image = getDisplayedImage();
+        return image == null ? getWidth() : Math.max(getWidth(), image.getWidth());
+    }
+
+    @Override
+    protected float getDrawHeight() {
+        BufferedImage image = getDisplayedImage();
+        return image == null ? getHeight() : Math.max(getHeight(), image.getHeight());
+    }
+
     @Override
     public void onDraw(Graphics2D g) {
         g.drawImage(getDisplayedImage(), null, null);
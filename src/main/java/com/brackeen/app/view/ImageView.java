@@ -18,7 +18,11 @@ public class ImageView extends View {
     }
 
     public void setImage(BufferedImage image) {
-        this.image = image;
+        if (this.image != image) {
+            setDirty();
+            this.image = image;
+            setDirty();
+        }
     }
 
     @Override
@@ -30,6 +34,16 @@ public class ImageView extends View {
         }
     }
 
+    @Override
+    protected float getDrawWidth() {
+        return image == null ? getWidth() : Math.max(getWidth(), image.getWidth());
+    }
+
+    @Override
+    protected float getDrawHeight() {
+        return image == null ? getHeight() : Math.max(getHeight(), image.getHeight());
+    }
+
     @Override
     public void onDraw(Graphics2D g) {
         if (image != null) {
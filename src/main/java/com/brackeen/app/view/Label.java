@@ -3,12 +3,55 @@ package com.brackeen.app.view;
 import com.brackeen.app.BitmapFont;
 
 import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 @SuppressWarnings("unused")
 public class Label extends View {
 
+    private static final int MAX_TEXT_IMAGES = 64;
+
+    private static class TextImageKey {
+        final BitmapFont font;
+        final String text;
+        final int tracking;
+
+        TextImageKey(BitmapFont font, String text, int tracking) {
+            this.font = font;
+            this.text = text;
+            this.tracking = tracking;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TextImageKey)) {
+                return false;
+            }
+            TextImageKey other = (TextImageKey) obj;
+            return font == other.font && text.equals(other.text) && tracking == other.tracking;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(font) * 31 + text.hashCode()) * 31 + tracking;
+        }
+    }
+
+    // Images of text, shared by all labels. Access-ordered, so the least recently used is evicted.
+    private static final LinkedHashMap<TextImageKey, BufferedImage> textImages =
+            new LinkedHashMap<TextImageKey, BufferedImage>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<TextImageKey, BufferedImage> eldest) {
+                    return size() > MAX_TEXT_IMAGES;
+                }
+            };
+
     private BitmapFont font;
     private String text;
+    private BufferedImage textImage;
+    private int textImageTracking;
 
     public Label() {
 
@@ -25,7 +68,12 @@ public class Label extends View {
     }
 
     public void setFont(BitmapFont font) {
-        this.font = font;
+        if (this.font != font) {
+            setDirty();
+            this.font = font;
+            textImage = null;
+            setDirty();
+        }
     }
 
     public String getText() {
@@ -33,7 +81,54 @@ public class Label extends View {
     }
 
     public void setText(String text) {
-        this.text = text;
+        if (!Objects.equals(this.text, text)) {
+            setDirty();
+            this.text = text;
+            textImage = null;
+            setDirty();
+        }
+    }
+
+    @Override
+    protected float getDrawWidth() {
+        return font == null ? getWidth() : Math.max(getWidth(), font.getStringWidth(text));
+    }
+
+    @Override
+    protected float getDrawHeight() {
+        return font == null ? getHeight() : Math.max(getHeight(), font.getHeight());
+    }
+
+    /**
+     * Gets an image of the text, drawn with the font. Images are cached, so text that doesn't
+     * change is drawn with a single image. Returns null if there is nothing to draw.
+     */
+    public BufferedImage getTextImage() {
+        if (font == null || text == null || text.isEmpty()) {
+            return null;
+        }
+        if (textImage == null || textImageTracking != font.getTracking()) {
+            textImageTracking = font.getTracking();
+            textImage = getTextImage(font, text, textImageTracking);
+        }
+        return textImage;
+    }
+
+    private static BufferedImage getTextImage(BitmapFont font, String text, int tracking) {
+        TextImageKey key = new TextImageKey(font, text, tracking);
+        BufferedImage image = textImages.get(key);
+        if (image == null) {
+            int width = font.getStringWidth(text);
+            if (width <= 0) {
+                return null;
+            }
+            image = new BufferedImage(width, font.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            font.drawString(g, text);
+            g.dispose();
+            textImages.put(key, image);
+        }
+        return image;
     }
 
     @Override
@@ -47,8 +142,9 @@ public class Label extends View {
 
     @Override
     public void onDraw(Graphics2D g) {
-        if (font != null) {
-            font.drawString(g, text);
+        BufferedImage image = getTextImage();
+        if (image != null) {
+            g.drawImage(image, null, null);
         }
     }
 
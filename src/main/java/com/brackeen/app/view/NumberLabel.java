@@ -0,0 +1,123 @@
+package com.brackeen.app.view;
+
+import com.brackeen.app.BitmapFont;
+
+/**
+ * A label showing a number, with optional text before and after it. The text is only rebuilt when
+ * the displayed value changes, so setting the same value every tick creates no garbage. The label
+ * is sized to fit its text.
+ */
+@SuppressWarnings("unused")
+public class NumberLabel extends Label {
+
+    // Enough for a sign, 19 digits, and a decimal point
+    private static final int MAX_NUMBER_LENGTH = 21;
+
+    private String prefix;
+    private String suffix;
+    private final int fractionDigits;
+    private final long scale;
+    private long scaledValue;
+    private char[] chars = new char[0];
+
+    public NumberLabel(BitmapFont font) {
+        this(font, "", "", 0);
+    }
+
+    /**
+     * @param fractionDigits The number of digits shown after the decimal point.
+     */
+    public NumberLabel(BitmapFont font, String prefix, String suffix, int fractionDigits) {
+        super(font, null);
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.fractionDigits = fractionDigits;
+        long scale = 1;
+        for (int i = 0; i < fractionDigits; i++) {
+            scale *= 10;
+        }
+        this.scale = scale;
+        updateText();
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        if (!this.prefix.equals(prefix)) {
+            this.prefix = prefix;
+            updateText();
+        }
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(String suffix) {
+        if (!this.suffix.equals(suffix)) {
+            this.suffix = suffix;
+            updateText();
+        }
+    }
+
+    public float getValue() {
+        return (float) scaledValue / scale;
+    }
+
+    public void setValue(int value) {
+        setScaledValue(value * scale);
+    }
+
+    /**
+     * Sets the value, rounded to the number of fraction digits.
+     */
+    public void setValue(float value) {
+        setScaledValue(Math.round((double) value * scale));
+    }
+
+    private void setScaledValue(long scaledValue) {
+        if (this.scaledValue != scaledValue) {
+            this.scaledValue = scaledValue;
+            updateText();
+        }
+    }
+
+    private void updateText() {
+        int maxLength = prefix.length() + MAX_NUMBER_LENGTH + suffix.length();
+        if (chars.length < maxLength) {
+            chars = new char[maxLength];
+        }
+        prefix.getChars(0, prefix.length(), chars, 0);
+        int length = prefix.length();
+
+        // Digits, last first
+        int start = length;
+        boolean negative = scaledValue < 0;
+        long value = Math.abs(scaledValue);
+        int digits = 0;
+        do {
+            if (digits == fractionDigits && digits > 0) {
+                chars[length++] = '.';
+            }
+            chars[length++] = (char) ('0' + value % 10);
+            value /= 10;
+            digits++;
+        } while (value > 0 || digits <= fractionDigits);
+        if (negative) {
+            chars[length++] = '-';
+        }
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char ch = chars[i];
+            chars[i] = chars[j];
+            chars[j] = ch;
+        }
+
+        suffix.getChars(0, suffix.length(), chars, length);
+        length += suffix.length();
+
+        setText(new String(chars, 0, length));
+        sizeToFit();
+    }
+}
@@ -12,4 +12,12 @@ public class Scene extends View {
     public void setFocusedView(View focusedView) {
         this.focusedView = focusedView;
     }
+
+    /**
+     * Called once before each frame is drawn, after any ticks. Frames may be drawn more or less
+     * often than the scene is ticked, so this is where a scene can interpolate between ticks.
+     */
+    public void onFrame() {
+
+    }
 }
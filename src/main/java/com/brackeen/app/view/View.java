@@ -18,6 +18,7 @@ import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 @SuppressWarnings("unused")
 public class View {
@@ -44,10 +45,19 @@ public class View {
 
     private final AffineTransform worldTransform = new AffineTransform();
     private final AffineTransform drawTransform = new AffineTransform();
+    private final AffineTransform worldInverseTransform = new AffineTransform();
+    private boolean worldTransformInvertible = true;
     private boolean localTransformDirty = true;
     private long localTransformModCount = 0;
     private long superviewTransformModCount = 0;
 
+    // Area that needs to be redrawn, in draw coordinates. Only used by root views.
+    private boolean dirty = false;
+    private float dirtyX1;
+    private float dirtyY1;
+    private float dirtyX2;
+    private float dirtyY2;
+
     public View() {
 
     }
@@ -122,8 +132,12 @@ public class View {
     }
 
     public void setX(float x) {
-        this.x = x;
-        localTransformDirty = true;
+        if (this.x != x) {
+            setDirty();
+            this.x = x;
+            localTransformDirty = true;
+            setDirty();
+        }
     }
 
     public float getY() {
@@ -131,8 +145,12 @@ public class View {
     }
 
     public void setY(float y) {
-        this.y = y;
-        localTransformDirty = true;
+        if (this.y != y) {
+            setDirty();
+            this.y = y;
+            localTransformDirty = true;
+            setDirty();
+        }
     }
 
     public void setLocation(float x, float y) {
@@ -145,8 +163,12 @@ public class View {
     }
 
     public void setAnchorX(float anchorX) {
-        this.anchorX = anchorX;
-        localTransformDirty = true;
+        if (this.anchorX != anchorX) {
+            setDirty();
+            this.anchorX = anchorX;
+            localTransformDirty = true;
+            setDirty();
+        }
     }
 
     public float getAnchorY() {
@@ -154,8 +176,12 @@ public class View {
     }
 
     public void setAnchorY(float anchorY) {
-        this.anchorY = anchorY;
-        localTransformDirty = true;
+        if (this.anchorY != anchorY) {
+            setDirty();
+            this.anchorY = anchorY;
+            localTransformDirty = true;
+            setDirty();
+        }
     }
 
     public void setAnchor(float anchorX, float anchorY) {
@@ -169,8 +195,10 @@ public class View {
 
     public void setWidth(float width) {
         if (this.width != width) {
+            setDirty();
             this.width = width;
             localTransformDirty = true;
+            setDirty();
             if (loaded) {
                 onResize();
             }
@@ -183,8 +211,10 @@ public class View {
 
     public void setHeight(float height) {
         if (this.height != height) {
+            setDirty();
             this.height = height;
             localTransformDirty = true;
+            setDirty();
             if (loaded) {
                 onResize();
             }
@@ -193,9 +223,11 @@ public class View {
 
     public void setSize(float width, float height) {
         if (this.width != width || this.height != height) {
+            setDirty();
             this.width = width;
             this.height = height;
             localTransformDirty = true;
+            setDirty();
             if (loaded) {
                 onResize();
             }
@@ -216,7 +248,10 @@ public class View {
     }
 
     public void setBackgroundColor(Color backgroundColor) {
-        this.backgroundColor = backgroundColor;
+        if (!Objects.equals(this.backgroundColor, backgroundColor)) {
+            this.backgroundColor = backgroundColor;
+            setDirty();
+        }
     }
 
     public float getOpacity() {
@@ -224,7 +259,11 @@ public class View {
     }
 
     public void setOpacity(float opacity) {
-        this.opacity = opacity;
+        if (this.opacity != opacity) {
+            setDirty();
+            this.opacity = opacity;
+            setDirty();
+        }
     }
 
     public boolean isVisible() {
@@ -232,7 +271,11 @@ public class View {
     }
 
     public void setVisible(boolean visible) {
-        this.visible = visible;
+        if (this.visible != visible) {
+            setDirty();
+            this.visible = visible;
+            setDirty();
+        }
     }
 
     // Subviews and superviews
@@ -262,6 +305,7 @@ public class View {
 
     public void removeFromSuperview() {
         if (superview != null) {
+            setDirty();
             superview.subviews.remove(this);
             superview = null;
         }
@@ -292,6 +336,7 @@ public class View {
         subviews.add(index, subview);
         subview.superview = this;
         superviewTransformModCount = -1;
+        subview.setDirty();
     }
 
     public int indexOfSubview(View subview) {
@@ -307,6 +352,115 @@ public class View {
         superviewTransformModCount = -1;
     }
 
+    // Dirty areas
+
+    /**
+     * Marks the area this view and its subviews draw in as needing to be redrawn. Changing a
+     * view's properties does this automatically. Views whose drawing changes in other ways, like a
+     * 3D view, must call this when it does.
+     */
+    public void setDirty() {
+        if (visible && opacity > 0) {
+            addDirtyBounds(getRoot(), getDrawOriginX(), getDrawOriginY());
+        }
+    }
+
+    /**
+     * Marks an area of this view, in local coordinates, as needing to be redrawn.
+     */
+    public void setDirty(float x, float y, float width, float height) {
+        getRoot().addDirtyRect(getDrawOriginX() + x, getDrawOriginY() + y, width, height);
+    }
+
+    // Views are only translated, so the draw location of a view's origin is the sum of the offsets
+    // of the view and its ancestors. The root is drawn at (0, 0).
+
+    private float getDrawOriginX() {
+        float drawX = 0;
+        for (View view = this; view.superview != null; view = view.superview) {
+            drawX += view.x - view.anchorX * view.width;
+        }
+        return drawX;
+    }
+
+    private float getDrawOriginY() {
+        float drawY = 0;
+        for (View view = this; view.superview != null; view = view.superview) {
+            drawY += view.y - view.anchorY * view.height;
+        }
+        return drawY;
+    }
+
+    private void addDirtyBounds(View root, float drawX, float drawY) {
+        root.addDirtyRect(drawX, drawY, getDrawWidth(), getDrawHeight());
+        for (View subview : subviews) {
+            if (subview.visible && subview.opacity > 0) {
+                subview.addDirtyBounds(root, drawX + subview.x - subview.anchorX * subview.width,
+                        drawY + subview.y - subview.anchorY * subview.height);
+            }
+        }
+    }
+
+    private void addDirtyRect(float x, float y, float width, float height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (!dirty) {
+            dirty = true;
+            dirtyX1 = x;
+            dirtyY1 = y;
+            dirtyX2 = x + width;
+            dirtyY2 = y + height;
+        } else {
+            dirtyX1 = Math.min(dirtyX1, x);
+            dirtyY1 = Math.min(dirtyY1, y);
+            dirtyX2 = Math.max(dirtyX2, x + width);
+            dirtyY2 = Math.max(dirtyY2, y + height);
+        }
+    }
+
+    /**
+     * Gets the width of the area this view draws in, starting at its origin. By default, this is
+     * the view's width. Views that may draw outside their bounds override this.
+     */
+    protected float getDrawWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the area this view draws in, starting at its origin. By default, this is
+     * the view's height.
+     */
+    protected float getDrawHeight() {
+        return height;
+    }
+
+    /**
+     * Returns true if some area of this root view needs to be redrawn.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Gets the union of the areas of this root view that need to be redrawn, in draw coordinates.
+     * Returns null if nothing needs to be redrawn.
+     */
+    public Rectangle2D.Float getDirtyRect() {
+        if (!dirty) {
+            return null;
+        } else {
+            return new Rectangle2D.Float(dirtyX1, dirtyY1, dirtyX2 - dirtyX1, dirtyY2 - dirtyY1);
+        }
+    }
+
+    /**
+     * Clears the area of this root view that needs to be redrawn. Invoked after drawing.
+     */
+    public void clearDirty() {
+        dirty = false;
+    }
+
     // Notifications
 
     public final void load() {
@@ -351,7 +505,22 @@ public class View {
 
     // Transforms
 
+    /**
+     * Updates the transforms of this view and its ancestors. Used when starting from an arbitrary
+     * view; tree traversals (drawing and picking) instead update each view once, top-down, with
+     * {@link #updateTransformsFromSuperview()}.
+     */
     private void updateTransforms() {
+        if (superview != null) {
+            superview.updateTransforms();
+        }
+        updateTransformsFromSuperview();
+    }
+
+    /**
+     * Updates the transforms of this view, assuming the superview's transforms are up to date.
+     */
+    private void updateTransformsFromSuperview() {
         boolean worldTransformDirty = false;
 
         if (superview == null) {
@@ -363,7 +532,6 @@ public class View {
                 worldTransformDirty = true;
             }
         } else {
-            superview.updateTransforms();
             if (localTransformDirty || superviewTransformModCount != superview.localTransformModCount) {
                 worldTransform.setTransform(superview.worldTransform);
                 drawTransform.setTransform(superview.drawTransform);
@@ -383,6 +551,15 @@ public class View {
                 drawTransform.translate(-anchorLocalX, -anchorLocalY);
             }
 
+            // Cached for hit testing
+            try {
+                worldInverseTransform.setTransform(worldTransform);
+                worldInverseTransform.invert();
+                worldTransformInvertible = true;
+            } catch (NoninvertibleTransformException ex) {
+                worldTransformInvertible = false;
+            }
+
             localTransformModCount++;
             localTransformDirty = false;
         }
@@ -393,20 +570,49 @@ public class View {
     }
 
     public Point2D.Float getLocalLocation(float worldX, float worldY) {
+        return getLocalLocation(worldX, worldY, new Point2D.Float());
+    }
+
+    /**
+     * Converts a location in world coordinates to this view's local coordinates, without
+     * allocating.
+     *
+     * @param dst The point to set to the local location.
+     * @return dst, or null if the view's transform can't be inverted.
+     */
+    public Point2D.Float getLocalLocation(float worldX, float worldY, Point2D.Float dst) {
         updateTransforms();
-        Point2D.Float src = new Point2D.Float(worldX, worldY);
-        Point2D.Float dst = new Point2D.Float(0, 0);
-        try {
-            worldTransform.inverseTransform(src, dst);
-            return dst;
-        } catch (NoninvertibleTransformException ex) {
+        if (!worldTransformInvertible) {
             return null;
         }
+        dst.x = getLocalX(worldX, worldY);
+        dst.y = getLocalY(worldX, worldY);
+        return dst;
+    }
+
+    private float getLocalX(float worldX, float worldY) {
+        return (float) (worldInverseTransform.getScaleX() * worldX +
+                worldInverseTransform.getShearX() * worldY + worldInverseTransform.getTranslateX());
+    }
+
+    private float getLocalY(float worldX, float worldY) {
+        return (float) (worldInverseTransform.getShearY() * worldX +
+                worldInverseTransform.getScaleY() * worldY + worldInverseTransform.getTranslateY());
     }
 
     public boolean contains(float worldX, float worldY) {
-        Point2D.Float local = getLocalLocation(worldX, worldY);
-        return (local != null && local.x >= 0 && local.x < getWidth() && local.y >= 0 && local.y < getHeight());
+        updateTransforms();
+        return containsLocal(worldX, worldY);
+    }
+
+    // The transforms of this view are up to date
+    private boolean containsLocal(float worldX, float worldY) {
+        if (!worldTransformInvertible) {
+            return false;
+        }
+        float localX = getLocalX(worldX, worldY);
+        float localY = getLocalY(worldX, worldY);
+        return (localX >= 0 && localX < getWidth() && localY >= 0 && localY < getHeight());
     }
 
     public View pick(float worldX, float worldY) {
@@ -414,15 +620,23 @@ public class View {
     }
 
     public View pick(float worldX, float worldY, boolean allowDisabledViews) {
+        updateTransforms();
+        return pickTree(worldX, worldY, allowDisabledViews);
+    }
+
+    // The transforms of this view are up to date
+    private View pickTree(float worldX, float worldY, boolean allowDisabledViews) {
         if (!isVisible() || getOpacity() <= 0) {
             return null;
         } else {
-            boolean inside = contains(worldX, worldY);
+            boolean inside = containsLocal(worldX, worldY);
             if (isClippedToBounds() && !inside) {
                 return null;
             }
             for (int i = subviews.size() - 1; i >= 0; i--) {
-                View pickedView = subviews.get(i).pick(worldX, worldY, allowDisabledViews);
+                View subview = subviews.get(i);
+                subview.updateTransformsFromSuperview();
+                View pickedView = subview.pickTree(worldX, worldY, allowDisabledViews);
                 if (pickedView != null) {
                     return pickedView;
                 }
@@ -440,9 +654,12 @@ public class View {
         if (!visible || opacity <= 0) {
             return;
         }
-
         updateTransforms();
+        drawTree(g);
+    }
 
+    // The transforms of this view are up to date
+    private void drawTree(Graphics2D g) {
         Composite oldComposite = null;
 
         if (opacity < 1) {
@@ -460,8 +677,12 @@ public class View {
         }
         onDraw(g);
 
-        for (View subview : subviews) {
-            subview.draw(g);
+        for (int i = 0; i < subviews.size(); i++) {
+            View subview = subviews.get(i);
+            if (subview.visible && subview.opacity > 0) {
+                subview.updateTransformsFromSuperview();
+                subview.drawTree(g);
+            }
         }
 
         if (oldComposite != null) {
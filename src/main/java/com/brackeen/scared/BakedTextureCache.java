@@ -0,0 +1,521 @@
+package com.brackeen.scared;
+
+import com.brackeen.app.App;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
+
+/**
+ * An on-disk cache of processed textures (ARGB pixels, including half-size textures), so that
+ * PNGs don't need to be decoded and mip-maps don't need to be created on every launch.
+ * <p>
+ * Each texture is checked against the length and last-modified time of its source resource and a
+ * recipe string describing how it was processed. If any of them changed, the texture is processed
+ * again and the cache is rewritten. The pixels of each texture are checked against a CRC32 as they
+ * are read, so a damaged cache falls back to the source image.
+ * <p>
+ * The file is only open while it is read or written: {@link #load()} reads the index,
+ * {@link #get} reads a texture's pixels straight into the texture, and {@link #save()} writes a
+ * new file that replaces the old one.
+ * <p>
+ * File format (big-endian): the magic "SCTC", a version int, an entry count int, and the index
+ * length int, followed by the index and then the payloads. Each index entry is the name, the
+ * source length (long), the source last-modified time (long), the recipe, and the payload offset
+ * from the end of the index (long), length (int), and CRC32 (int). Each payload is the number of
+ * levels (int), then for each level the width (int), height (int), the
+ * {@link SoftTexture.DownscaleType} ordinal used to create the next level (int), and
+ * width * height ARGB pixels. The levels are followed by the number of lazy levels still to be
+ * created (int) and the downscale type ordinal for lazy levels after the next one (int).
+ * Strings are a length (short) followed by UTF-8 bytes.
+ * <p>
+ * Textures added with {@link #put} are serialized by {@link #save()}, so the half-size textures
+ * created by then are saved too. Unchanged entries are copied from the old file as-is.
+ */
+public class BakedTextureCache {
+
+    private static final int MAGIC = 0x53435443; // "SCTC"
+    private static final int VERSION = 3;
+    private static final int HEADER_LENGTH = 16;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The length and last-modified time of a source resource. Unlike a checksum of the contents,
+     * they can be checked without reading the resource.
+     */
+    public static class Source {
+        final long length;
+        final long lastModified;
+
+        public Source(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Source)) {
+                return false;
+            }
+            Source other = (Source) obj;
+            return length == other.length && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (length * 31 + lastModified);
+        }
+    }
+
+    private static class Entry {
+        final Source source;
+        final String recipe;
+        final long offset;
+        final int length;
+        final int crc;
+
+        Entry(Source source, String recipe, long offset, int length, int crc) {
+            this.source = source;
+            this.recipe = recipe;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private static class NewEntry {
+        final Source source;
+        final String recipe;
+        final SoftTexture texture;
+        byte[] payload;
+
+        NewEntry(Source source, String recipe, SoftTexture texture) {
+            this.source = source;
+            this.recipe = recipe;
+            this.texture = texture;
+        }
+    }
+
+    private final File file;
+    private final HashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final HashMap<String, NewEntry> newEntries = new LinkedHashMap<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    public BakedTextureCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the index of the cache file. If the file doesn't exist or is invalid, the cache
+     * starts empty.
+     */
+    public synchronized void load() {
+        entries.clear();
+        if (!file.isFile()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, HEADER_LENGTH);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Wrong version");
+            }
+            int count = header.getInt();
+            int indexLength = header.getInt();
+            long payloadStart = HEADER_LENGTH + (long) indexLength;
+            if (indexLength < 0 || payloadStart > channel.size()) {
+                throw new IOException("Invalid index");
+            }
+            ByteBuffer index = read(channel, HEADER_LENGTH, indexLength);
+            for (int i = 0; i < count; i++) {
+                String name = readString(index);
+                long sourceLength = index.getLong();
+                long sourceLastModified = index.getLong();
+                String recipe = readString(index);
+                long offset = payloadStart + index.getLong();
+                int length = index.getInt();
+                int crc = index.getInt();
+                if (offset < payloadStart || length < 0 || offset + length > channel.size()) {
+                    throw new IOException("Invalid entry");
+                }
+                entries.put(name, new Entry(new Source(sourceLength, sourceLastModified), recipe,
+                        offset, length, crc));
+            }
+        } catch (IOException | BufferUnderflowException ex) {
+            App.log("Texture cache ignored: " + ex.getMessage());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets a texture from the cache, or null if it isn't cached, is out of date, or is damaged.
+     *
+     * @param offHeap If true, the pixels are read into off-heap memory instead of the heap.
+     */
+    public synchronized SoftTexture get(String name, Source source, String recipe, boolean offHeap) {
+        Entry entry = entries.get(name);
+        if (entry == null || !entry.source.equals(source) || !entry.recipe.equals(recipe)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            PayloadReader in = new PayloadReader(channel, entry.offset, entry.length, readBuffer);
+            SoftTexture.DownscaleType[] downscaleTypes = SoftTexture.DownscaleType.values();
+            int numLevels = in.readInt();
+            if (numLevels <= 0) {
+                throw new IOException("Invalid levels");
+            }
+            SoftTexture texture = null;
+            SoftTexture parent = null;
+            for (int i = 0; i < numLevels; i++) {
+                int w = in.readInt();
+                int h = in.readInt();
+                int downscaleType = in.readInt();
+                if (downscaleType < 0 || downscaleType >= downscaleTypes.length) {
+                    throw new IOException("Invalid downscale type");
+                }
+                if (w <= 0 || h <= 0 || (long) w * h > in.remaining() / 4) {
+                    throw new IOException("Invalid texture size");
+                }
+                SoftTexture level = offHeap ? SoftTexture.createOffHeap(w, h) : new SoftTexture(w, h);
+                level.setDownscaleType(downscaleTypes[downscaleType]);
+                in.readInts(offHeap ? level.getOffHeapData().duplicate() : IntBuffer.wrap(level.getData()));
+                if (parent == null) {
+                    texture = level;
+                } else {
+                    parent.setHalfSizeTexture(level);
+                }
+                parent = level;
+            }
+            int lazyLevels = in.readInt();
+            int lazyDownscaleType = in.readInt();
+            if (lazyLevels < 0 || lazyDownscaleType < 0 || lazyDownscaleType >= downscaleTypes.length) {
+                throw new IOException("Invalid lazy levels");
+            }
+            in.checkCrc(entry.crc);
+            if (lazyLevels > 0) {
+                parent.setLazyHalfSizeTextures(lazyLevels, parent.getDownscaleType(),
+                        downscaleTypes[lazyDownscaleType]);
+            }
+            return texture;
+        } catch (IOException ex) {
+            App.log("Texture cache entry " + name + " ignored: " + ex.getMessage());
+            entries.remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * Adds a processed texture, to be written on the next {@link #save()} with the half-size
+     * textures it has by then. The texture must stay ARGB until then; if it is converted to
+     * indexed first, it isn't written.
+     */
+    public synchronized void put(String name, Source source, String recipe, SoftTexture texture) {
+        newEntries.put(name, new NewEntry(source, recipe, texture));
+    }
+
+    /**
+     * Writes the cache if any texture was added. Best called once the half-size textures are
+     * created, so they are saved too. The old file is closed by then, so it can be replaced on any
+     * platform.
+     */
+    public synchronized void save() {
+        Iterator<NewEntry> i = newEntries.values().iterator();
+        while (i.hasNext()) {
+            NewEntry entry = i.next();
+            entry.payload = serialize(entry.texture);
+            if (entry.payload == null) {
+                i.remove();
+            }
+        }
+        if (newEntries.isEmpty()) {
+            return;
+        }
+        File parentDir = file.getParentFile();
+        File tempFile = new File(parentDir, file.getName() + ".tmp");
+        try {
+            parentDir.mkdirs();
+
+            // Unchanged entries first, then new ones
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            int count = 0;
+            long offset = 0;
+            try (DataOutputStream index = new DataOutputStream(indexBytes)) {
+                for (java.util.Map.Entry<String, Entry> e : entries.entrySet()) {
+                    if (!newEntries.containsKey(e.getKey())) {
+                        Entry entry = e.getValue();
+                        writeIndexEntry(index, e.getKey(), entry.source, entry.recipe, offset,
+                                entry.length, entry.crc);
+                        offset += entry.length;
+                        count++;
+                    }
+                }
+                for (java.util.Map.Entry<String, NewEntry> e : newEntries.entrySet()) {
+                    NewEntry entry = e.getValue();
+                    CRC32 crc = new CRC32();
+                    crc.update(entry.payload);
+                    writeIndexEntry(index, e.getKey(), entry.source, entry.recipe, offset,
+                            entry.payload.length, (int) crc.getValue());
+                    offset += entry.payload.length;
+                    count++;
+                }
+            }
+
+            try (FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(count);
+                header.putInt(indexBytes.size());
+                header.flip();
+                write(out, header);
+                write(out, ByteBuffer.wrap(indexBytes.toByteArray()));
+                if (count > newEntries.size()) {
+                    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        for (java.util.Map.Entry<String, Entry> e : entries.entrySet()) {
+                            if (!newEntries.containsKey(e.getKey())) {
+                                copy(in, e.getValue().offset, e.getValue().length, out);
+                            }
+                        }
+                    }
+                }
+                for (NewEntry entry : newEntries.values()) {
+                    write(out, ByteBuffer.wrap(entry.payload));
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            App.log("Texture cache saved: " + file);
+        } catch (IOException ex) {
+            App.log("Texture cache not saved: " + ex.getMessage());
+            tempFile.delete();
+        }
+        newEntries.clear();
+        load();
+    }
+
+    /**
+     * Serializes a texture and the half-size textures created so far, or returns null if it is
+     * indexed.
+     */
+    private static byte[] serialize(SoftTexture texture) {
+        // Half-size textures may be created on another thread meanwhile. The lock makes the lazy
+        // levels of the last level match its missing half-size texture.
+        List<SoftTexture> levels = new ArrayList<>();
+        int lazyLevels = 0;
+        SoftTexture.DownscaleType lazyDownscaleType = null;
+        SoftTexture t = texture;
+        while (t != null) {
+            levels.add(t);
+            SoftTexture next;
+            synchronized (t) {
+                next = t.getCreatedHalfSizeTexture();
+                if (next == null) {
+                    lazyLevels = t.getLazyLevels();
+                    lazyDownscaleType = t.getLazyDownscaleType();
+                }
+            }
+            t = next;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(levels.size());
+            for (SoftTexture level : levels) {
+                out.writeInt(level.getWidth());
+                out.writeInt(level.getHeight());
+                out.writeInt(level.getDownscaleType().ordinal());
+                // Keeps the pixels from moving off-heap or to indexed while they are read
+                synchronized (level) {
+                    if (level.isIndexed()) {
+                        return null;
+                    }
+                    int numPixels = level.getWidth() * level.getHeight();
+                    for (int i = 0; i < numPixels; i++) {
+                        out.writeInt(level.getPixel(i));
+                    }
+                }
+            }
+            out.writeInt(lazyLevels);
+            out.writeInt(lazyDownscaleType.ordinal());
+        } catch (IOException ex) {
+            // Can't happen with a ByteArrayOutputStream
+            throw new RuntimeException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets the length and last-modified time of a resource, or null if it doesn't exist. For a
+     * resource in a jar, these are the jar entry's.
+     */
+    public static Source getResourceSource(String name) {
+        URL url = App.getResource(name);
+        if (url == null) {
+            return null;
+        }
+        try {
+            if ("file".equals(url.getProtocol())) {
+                File resourceFile = new File(url.toURI());
+                return new Source(resourceFile.length(), resourceFile.lastModified());
+            }
+            URLConnection connection = url.openConnection();
+            if (connection instanceof JarURLConnection) {
+                JarEntry jarEntry = ((JarURLConnection) connection).getJarEntry();
+                if (jarEntry == null) {
+                    return null;
+                }
+                return new Source(jarEntry.getSize(), jarEntry.getTime());
+            }
+            Source source = new Source(connection.getContentLengthLong(), connection.getLastModified());
+            connection.getInputStream().close();
+            return source;
+        } catch (IOException | URISyntaxException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a payload through a small buffer, updating a CRC32 as it goes. Pixels are copied
+     * from the buffer straight into their texture.
+     */
+    private static class PayloadReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+        private long position;
+        private long unread; // Bytes not yet read into the buffer
+
+        PayloadReader(FileChannel channel, long position, int length, ByteBuffer buffer) {
+            this.channel = channel;
+            this.position = position;
+            this.unread = length;
+            this.buffer = buffer;
+            buffer.clear();
+            buffer.limit(0);
+        }
+
+        long remaining() {
+            return unread + buffer.remaining();
+        }
+
+        int readInt() throws IOException {
+            fill();
+            return buffer.getInt();
+        }
+
+        /**
+         * Reads ints until dst is full.
+         */
+        void readInts(IntBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                fill();
+                IntBuffer src = buffer.asIntBuffer();
+                int n = Math.min(src.remaining(), dst.remaining());
+                src.limit(n);
+                dst.put(src);
+                buffer.position(buffer.position() + n * 4);
+            }
+        }
+
+        void checkCrc(int expectedCrc) throws IOException {
+            if (remaining() != 0 || (int) crc.getValue() != expectedCrc) {
+                throw new IOException("Checksum mismatch");
+            }
+        }
+
+        // Makes sure at least one int is buffered
+        private void fill() throws IOException {
+            if (buffer.remaining() >= 4) {
+                return;
+            }
+            buffer.compact();
+            int start = buffer.position();
+            buffer.limit((int) Math.min(buffer.capacity(), start + unread));
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                position += n;
+            }
+            crc.update(buffer.array(), start, buffer.position() - start);
+            unread -= buffer.position() - start;
+            buffer.flip();
+            if (buffer.remaining() < 4) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void copy(FileChannel in, long position, long length, FileChannel out) throws IOException {
+        while (length > 0) {
+            long n = in.transferTo(position, length, out);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            position += n;
+            length -= n;
+        }
+    }
+
+    private static void writeIndexEntry(DataOutputStream out, String name, Source source, String recipe,
+                                        long offset, int length, int crc) throws IOException {
+        writeString(out, name);
+        out.writeLong(source.length);
+        out.writeLong(source.lastModified);
+        writeString(out, recipe);
+        out.writeLong(offset);
+        out.writeInt(length);
+        out.writeInt(crc);
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getShort() & 0xffff];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
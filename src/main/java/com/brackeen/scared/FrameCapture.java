@@ -0,0 +1,304 @@
+package com.brackeen.scared;
+
+import com.brackeen.app.App;
+
+import java.awt.EventQueue;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Captures rendered frames as PNG screenshots, or as a raw video stream. Frames are copied into a
+ * small pool of reusable buffers and encoded on a background thread. If the pool is exhausted
+ * (the encoder can't keep up), frames are dropped rather than stalling the game loop.
+ * <p>
+ * Raw stream format (big-endian): the magic "SCRV", a version int (1), width int, and height int,
+ * followed by frames. Each frame is a timestamp in nanoseconds (long), then width * height
+ * pixels in RGB int format.
+ */
+public class FrameCapture {
+
+    private static final int POOL_SIZE = 4;
+    private static final int STREAM_VERSION = 1;
+
+    private static final int JOB_SCREENSHOT = 0;
+    private static final int JOB_STREAM_START = 1;
+    private static final int JOB_STREAM_FRAME = 2;
+    private static final int JOB_STREAM_END = 3;
+    private static final int JOB_SHUTDOWN = 4;
+
+    private static class Job {
+        final int type;
+        final int[] pixels;
+        final int width;
+        final int height;
+        final long timestamp;
+        final File file;
+        int framesDropped;
+
+        Job(int type, int[] pixels, int width, int height, long timestamp, File file) {
+            this.type = type;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.timestamp = timestamp;
+            this.file = file;
+        }
+    }
+
+    private final File directory;
+    private final BlockingQueue<int[]> freeBuffers = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Job> jobs = new LinkedBlockingQueue<>();
+    private int buffersAllocated;
+    private Thread thread;
+
+    // Game thread state
+    private boolean screenshotRequested;
+    private boolean recording;
+    private boolean streamStarted;
+    private int streamWidth;
+    private int streamHeight;
+    private long streamStartTime;
+    private int framesDropped;
+
+    public FrameCapture(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Checks if the next frame should be passed to {@link #submitFrame(int[], int, int)}.
+     */
+    public boolean isCapturePending() {
+        return screenshotRequested || recording;
+    }
+
+    public void requestScreenshot() {
+        screenshotRequested = true;
+    }
+
+    public void startRecording() {
+        if (!recording) {
+            recording = true;
+            streamStarted = false;
+            framesDropped = 0;
+        }
+    }
+
+    public void stopRecording() {
+        if (recording) {
+            recording = false;
+            if (streamStarted) {
+                streamStarted = false;
+                Job job = new Job(JOB_STREAM_END, null, 0, 0, 0, null);
+                job.framesDropped = framesDropped;
+                jobs.add(job);
+            }
+        }
+    }
+
+    /**
+     * Copies a frame for capture. The pixels are copied immediately, so the caller can reuse the
+     * array. This method never blocks.
+     */
+    public void submitFrame(int[] pixels, int width, int height) {
+        if (screenshotRequested) {
+            screenshotRequested = false;
+            int[] buffer = obtainBuffer(width * height);
+            if (buffer == null) {
+                App.log("Screenshot skipped: capture is busy");
+            } else {
+                System.arraycopy(pixels, 0, buffer, 0, width * height);
+                submitJob(new Job(JOB_SCREENSHOT, buffer, width, height, 0, createFile("png")));
+            }
+        }
+
+        if (recording) {
+            long now = System.nanoTime();
+            if (streamStarted && (width != streamWidth || height != streamHeight)) {
+                App.log("Recording stopped: view size changed");
+                stopRecording();
+                return;
+            }
+            if (!streamStarted) {
+                streamStarted = true;
+                streamWidth = width;
+                streamHeight = height;
+                streamStartTime = now;
+                submitJob(new Job(JOB_STREAM_START, null, width, height, 0, createFile("raw")));
+            }
+            int[] buffer = obtainBuffer(width * height);
+            if (buffer == null) {
+                framesDropped++;
+            } else {
+                System.arraycopy(pixels, 0, buffer, 0, width * height);
+                submitJob(new Job(JOB_STREAM_FRAME, buffer, width, height, now - streamStartTime, null));
+            }
+        }
+    }
+
+    /**
+     * Stops recording, and stops the encoder thread after it finishes any pending frames.
+     */
+    public void shutdown() {
+        stopRecording();
+        if (thread != null) {
+            jobs.add(new Job(JOB_SHUTDOWN, null, 0, 0, 0, null));
+            thread = null;
+        }
+    }
+
+    private int[] obtainBuffer(int size) {
+        int[] buffer = freeBuffers.poll();
+        if (buffer == null) {
+            if (buffersAllocated >= POOL_SIZE) {
+                return null;
+            }
+            buffersAllocated++;
+        }
+        if (buffer == null || buffer.length != size) {
+            buffer = new int[size];
+        }
+        return buffer;
+    }
+
+    private File createFile(String extension) {
+        String name = "scared-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + "." + extension;
+        return new File(directory, name);
+    }
+
+    private void submitJob(Job job) {
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runEncoder();
+                }
+            }, "FrameCapture");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        jobs.add(job);
+    }
+
+    // Encoder thread
+
+    private static void postLog(final String statement) {
+        EventQueue.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                App.log(statement);
+            }
+        });
+    }
+
+    private void runEncoder() {
+        FileChannel channel = null;
+        File streamFile = null;
+        ByteBuffer streamBuffer = null;
+        IntBuffer streamPixels = null;
+        int framesWritten = 0;
+
+        while (true) {
+            Job job;
+            try {
+                job = jobs.take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            try {
+                switch (job.type) {
+                    case JOB_SCREENSHOT: {
+                        BufferedImage image = new BufferedImage(job.width, job.height, BufferedImage.TYPE_INT_RGB);
+                        image.setRGB(0, 0, job.width, job.height, job.pixels, 0, job.width);
+                        directory.mkdirs();
+                        ImageIO.write(image, "png", job.file);
+                        postLog("Screenshot saved: " + job.file);
+                        break;
+                    }
+                    case JOB_STREAM_START: {
+                        directory.mkdirs();
+                        streamFile = job.file;
+                        channel = FileChannel.open(streamFile.toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                        streamBuffer = ByteBuffer.allocateDirect(8 + job.width * job.height * 4);
+                        streamPixels = streamBuffer.asIntBuffer();
+                        framesWritten = 0;
+
+                        ByteBuffer header = ByteBuffer.allocate(16);
+                        header.put((byte) 'S').put((byte) 'C').put((byte) 'R').put((byte) 'V');
+                        header.putInt(STREAM_VERSION).putInt(job.width).putInt(job.height);
+                        header.flip();
+                        writeFully(channel, header);
+                        postLog("Recording to " + streamFile);
+                        break;
+                    }
+                    case JOB_STREAM_FRAME: {
+                        if (channel != null) {
+                            streamBuffer.clear();
+                            streamBuffer.putLong(0, job.timestamp);
+                            streamPixels.clear();
+                            streamPixels.position(2);
+                            streamPixels.put(job.pixels, 0, job.width * job.height);
+                            writeFully(channel, streamBuffer);
+                            framesWritten++;
+                        }
+                        break;
+                    }
+                    case JOB_STREAM_END:
+                        if (channel != null) {
+                            channel.close();
+                            channel = null;
+                            streamBuffer = null;
+                            streamPixels = null;
+                            postLog("Recording stopped: " + framesWritten + " frames written, " +
+                                    job.framesDropped + " dropped");
+                        }
+                        break;
+                    case JOB_SHUTDOWN:
+                        return;
+                }
+            } catch (IOException ex) {
+                postLog("Capture failed: " + ex.getMessage());
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ex2) {
+                        // Ignore
+                    }
+                    channel = null;
+                }
+            } finally {
+                if (job.pixels != null) {
+                    freeBuffers.offer(job.pixels);
+                }
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
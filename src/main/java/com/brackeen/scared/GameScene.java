@@ -2,9 +2,11 @@ package com.brackeen.scared;
 
 import com.brackeen.app.App;
 import com.brackeen.app.BitmapFont;
+import com.brackeen.app.SimulationThread;
 import com.brackeen.app.audio.AudioEngine;
 import com.brackeen.app.view.ImageView;
 import com.brackeen.app.view.Label;
+import com.brackeen.app.view.NumberLabel;
 import com.brackeen.app.view.Scene;
 import com.brackeen.app.view.View;
 import com.brackeen.scared.entity.BlastMark;
@@ -16,6 +18,7 @@ import com.brackeen.scared.entity.Player;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Point;
 import java.awt.Toolkit;
 import java.awt.event.FocusEvent;
@@ -27,10 +30,22 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * The game. The simulation (the map, the player, and everything else that changes over time) runs
+ * on its own thread, at the app's simulation rate. Input events are queued to the simulation
+ * thread. After each tick, the simulation publishes a {@link Snapshot} of what is shown, which the
+ * event thread draws, so that a slow frame doesn't change the game's timing. Frames may be drawn
+ * faster than the simulation ticks; they interpolate between the last two ticks (see
+ * {@link #onFrame()}).
+ * <p>
+ * Console commands run on the event thread while holding the simulation lock.
+ */
 public class GameScene extends Scene {
 
     private static final boolean DEBUG_ALLOW_CAMERA_Z_CHANGES = Boolean.parseBoolean("false");
@@ -63,8 +78,46 @@ public class GameScene extends Scene {
 
     private static final int VOLUME_SCALE = 10;
 
-    private final HashMap<String, SoftTexture> textureCache;
+    private final TextureManager textureManager;
+    private final Palette palette;
+    private final FrameCapture frameCapture = new FrameCapture(
+            new File(System.getProperty("user.home"), "Scared Captures"));
+
+    /**
+     * What is shown of the game at one simulation tick: a snapshot of the map, and the HUD's state.
+     * Snapshots are triple-buffered: the simulation fills one, the event thread draws another, and
+     * the third is the latest published one, waiting to be drawn.
+     */
+    private static class Snapshot {
+        // The map this snapshot was last copied from. Only used by the simulation thread.
+        Map sourceMap;
+
+        MapSnapshot map;
+        // The time the tick was due (see SimulationThread.getLastTickTime)
+        long tickTime;
+        int level;
+        int numSecrets;
+        int numEnemies;
+        boolean playerAlive;
+        boolean playerHitRecently;
+        int health;
+        int ammo;
+        int secrets;
+        int kills;
+        final boolean[] keys = new boolean[Key.NUM_KEYS];
+        final String[] messages;
+        float speed;
+        boolean gunBlast;
+        boolean hasWon;
+        String gameOverText;
+
+        Snapshot(int numMessages) {
+            messages = new String[numMessages];
+        }
+    }
 
+    // Simulation state. Owned by the simulation thread; other threads hold the simulation lock.
+    private SimulationThread simulation;
     private boolean keyLeft = false;
     private boolean keyRight = false;
     private boolean keyDown = false;
@@ -73,15 +126,12 @@ public class GameScene extends Scene {
     private boolean keyStrafeRight = false;
     private boolean keyStrafeModifier = false;
     private boolean keyFire = false;
-    private boolean keyTab = false;
     private boolean mousePressed = false;
-
-    private SoftRender3D renderer;
     private Map map;
+    private WallDecals wallDecals;
     private CollisionDetection collisionDetection;
     private int level;
     private boolean hasWon;
-    private boolean showCrosshair = true;
     private Stats stats = new Stats();
 
     private float runVelocity = 0;
@@ -94,8 +144,31 @@ public class GameScene extends Scene {
 
     private final SoftTexture[] blastTextures = new SoftTexture[3];
 
-    // HUD
+    private int gunBlastCountdown;
+    private boolean showGunBlast;
+    private int gameOverTicksRemaining;
+    private String gameOverText;
     private final MessageQueue messageQueue = new MessageQueue(4);
+    private MapSnapshot mapSnapshot;
+    private Snapshot backSnapshot;
+
+    // The crosshair location, set by the event thread and read by the simulation. The x location is
+    // in the high 32 bits, and the y location in the low 32 bits. Mouse moves are frequent, so the
+    // aim is shared state rather than queued tasks.
+    private volatile long aim;
+
+    // The latest published snapshot, waiting to be drawn
+    private final Object snapshotLock = new Object();
+    private Snapshot pendingSnapshot;
+    private boolean snapshotPending;
+
+    // Views and the snapshot being drawn. Owned by the event thread.
+    private Snapshot snapshot;
+    private SoftRender3D renderer;
+    private boolean showCrosshair = true;
+    private boolean keyTab = false;
+
+    // HUD
     private final Label[] messageLabels = new Label[4];
     private BitmapFont messageFont;
     private BitmapFont scoreFont;
@@ -104,63 +177,81 @@ public class GameScene extends Scene {
     private final ImageView[] keys = new ImageView[Key.NUM_KEYS];
     private View normalStats;
     private View specialStats;
-    private Label healthLabel;
+    private NumberLabel healthLabel;
     private Label healthHeaderLabel;
-    private Label ammoLabel;
+    private NumberLabel ammoLabel;
     private Label ammoHeaderLabel;
-    private Label enemiesLabel;
-    private Label secretsLabel;
-    private Label levelLabel;
-    private Label fpsLabel;
+    private NumberLabel enemiesLabel;
+    private NumberLabel secretsLabel;
+    private NumberLabel levelLabel;
+    private NumberLabel fpsLabel;
+    private Minimap minimap;
     private int ticksUntilHideSpecialStats;
     private ImageView gunView;
     private ImageView gunBlastView;
-    private int gunBlastCountdown;
-    private int gameOverTicksRemaining;
+    private View hud;
     private View warningSplash;
     private View gameOverBackground;
     private View gameOverMessage;
-    private String gameOverText = "";
+    private String gameOverMessageText;
     private ImageView crosshair;
+    private final Point2D.Float mouseLocation = new Point2D.Float();
 
-    public GameScene(HashMap<String, SoftTexture> textureCache) {
-        this.textureCache = textureCache;
+    public GameScene(TextureManager textureManager) {
+        this.textureManager = textureManager;
+        this.palette = textureManager.getPalette();
     }
 
     @Override
     public void onLoad() {
         App app = App.getApp();
+        simulation = new SimulationThread("Simulation", app.getSimulationRate(), new Runnable() {
+            @Override
+            public void run() {
+                tickSimulation();
+            }
+        });
+        backSnapshot = new Snapshot(messageQueue.getMaxSize());
+        pendingSnapshot = new Snapshot(messageQueue.getMaxSize());
+        snapshot = new Snapshot(messageQueue.getMaxSize());
 
         messageFont = new BitmapFont(app.getImage("/ui/message_font.png"), 8, ' ');
         scoreFont = new BitmapFont(app.getImage("/ui/score_font.png"), 12, '0');
         scoreFont.setTracking(0);
 
-        blastTextures[0] = textureCache.get("/sprites/blast1.png");
-        blastTextures[1] = textureCache.get("/sprites/blast2.png");
-        blastTextures[2] = textureCache.get("/sprites/blast3.png");
+        for (int i = 0; i < blastTextures.length; i++) {
+            blastTextures[i] = textureManager.pin("/sprites/blast" + (i + 1) + ".png");
+        }
 
-        this.renderer = new SoftRender3D(textureCache);
+        this.renderer = new SoftRender3D(textureManager);
         renderer.setDepthShadingEnabled(Settings.getBoolean(Settings.DEPTH_SHADING, true));
+        renderer.setLightingEnabled(Settings.getBoolean(Settings.LIGHTING, true));
+        renderer.setPickableEntityClass(Enemy.class);
+        renderer.setFrameCapture(frameCapture);
         addSubview(renderer);
 
+        // HUD, drawn by the renderer into its frame buffer. The minimap is drawn with Java2D.
+        hud = new View(0, 0, getWidth(), getHeight());
+        renderer.setOverlayView(hud);
+
         // Crosshair
         crosshair = new ImageView(app.getImage("/hud/crosshair.png"));
         crosshair.setAnchor(0.5f, 0.5f);
-        addSubview(crosshair);
+        hud.addSubview(crosshair);
 
         // Gun
         gunBlastView = new ImageView(app.getImage("/hud/gun02.png"));
         gunBlastView.setVisible(false);
         gunBlastView.setLocation(getWidth() / 2, getHeight());
-        addSubview(gunBlastView);
+        hud.addSubview(gunBlastView);
         gunView = new ImageView(app.getImage("/hud/gun01.png"));
         gunView.setLocation(getWidth() / 2, getHeight());
-        addSubview(gunView);
+        hud.addSubview(gunView);
 
         // Red warning splash
         warningSplash = new View();
         warningSplash.setVisible(false);
-        addSubview(warningSplash);
+        hud.addSubview(warningSplash);
 
         float hudOpacity = 1.0f;
 
@@ -171,7 +262,7 @@ public class GameScene extends Scene {
             messageLabels[i] = new Label(messageFont, "");
             messageLabels[i].setLocation(messageX, messageY);
             messageLabels[i].setOpacity(hudOpacity);
-            addSubview(messageLabels[i]);
+            hud.addSubview(messageLabels[i]);
             messageY += messageLabels[i].getHeight();
         }
 
@@ -181,54 +272,64 @@ public class GameScene extends Scene {
             keys[i].setAnchor(1, 1);
             keys[i].setOpacity(hudOpacity);
             keys[i].setVisible(false);
-            addSubview(keys[i]);
+            hud.addSubview(keys[i]);
         }
 
         // Health/ammo
         normalStats = new View();
         normalStats.setOpacity(hudOpacity);
-        healthLabel = new Label(scoreFont, Integer.toString(Player.DEFAULT_HEALTH));
+        healthLabel = new NumberLabel(scoreFont);
+        healthLabel.setValue(Player.DEFAULT_HEALTH);
         healthLabel.setAnchor(0.5f, 1);
         normalStats.addSubview(healthLabel);
         healthHeaderLabel = new Label(messageFont, "HEALTH");
         healthHeaderLabel.setAnchor(0.5f, 1);
         normalStats.addSubview(healthHeaderLabel);
 
-        ammoLabel = new Label(scoreFont, Integer.toString(Player.DEFAULT_AMMO));
+        ammoLabel = new NumberLabel(scoreFont);
+        ammoLabel.setValue(Player.DEFAULT_AMMO);
         ammoLabel.setAnchor(0.5f, 1);
         normalStats.addSubview(ammoLabel);
         ammoHeaderLabel = new Label(messageFont, "AMMO");
         ammoHeaderLabel.setAnchor(0.5f, 1);
         normalStats.addSubview(ammoHeaderLabel);
-        addSubview(normalStats);
+        hud.addSubview(normalStats);
 
         // Secrets/enemies
         specialStats = new View();
         specialStats.setOpacity(hudOpacity);
         specialStats.setVisible(false);
-        secretsLabel = new Label(messageFont, "Secrets: 0/0");
+        secretsLabel = new NumberLabel(messageFont, "Secrets: ", "/0", 0);
         secretsLabel.setAnchor(0, 1);
         specialStats.addSubview(secretsLabel);
-        enemiesLabel = new Label(messageFont, "Enemies: 0/0");
+        enemiesLabel = new NumberLabel(messageFont, "Enemies: ", "/0", 0);
         enemiesLabel.setAnchor(0, 1);
         specialStats.addSubview(enemiesLabel);
-        levelLabel = new Label(messageFont, "Level 1");
+        levelLabel = new NumberLabel(messageFont, "Level: ", "/" + NUM_LEVELS, 0);
+        levelLabel.setValue(1);
         levelLabel.setAnchor(0, 1);
         specialStats.addSubview(levelLabel);
-        addSubview(specialStats);
+        hud.addSubview(specialStats);
 
         // FPS
-        fpsLabel = new Label(messageFont, "0 fps");
+        fpsLabel = new NumberLabel(messageFont, "", " fps", 1);
         fpsLabel.setOpacity(hudOpacity);
         fpsLabel.setAnchor(1, 0);
         fpsLabel.setVisible(false);
-        addSubview(fpsLabel);
+        hud.addSubview(fpsLabel);
+
+        // Minimap
+        minimap = new Minimap();
+        minimap.setOpacity(hudOpacity);
+        minimap.setAnchor(1, 0);
+        minimap.setVisible(false);
+        addSubview(minimap);
 
         // Focus message
         focusLostLabel = new Label(messageFont, "Click to continue");
         focusLostLabel.setAnchor(0.5f, 0.5f);
         focusLostLabel.setVisible(false);
-        addSubview(focusLostLabel);
+        hud.addSubview(focusLostLabel);
 
         onResize();
 
@@ -255,13 +356,19 @@ public class GameScene extends Scene {
             @Override
             public void keyPressed(KeyEvent ke) {
                 if (ke.getKeyCode() == KeyEvent.VK_ESCAPE) {
+                    // The simulation resumes when this scene ticks again
+                    simulation.setPaused(true);
                     App.getApp().pushScene(new ConsoleScene(GameScene.this));
                 } else if (ke.getKeyCode() == KeyEvent.VK_X) {
-                    if (map != null && map.getPlayer().isAlive()) {
+                    if (snapshot.playerAlive) {
                         showCrosshair = !showCrosshair;
                     }
                 } else if (ke.getKeyCode() == KeyEvent.VK_R) {
                     fpsLabel.setVisible(!fpsLabel.isVisible());
+                } else if (ke.getKeyCode() == KeyEvent.VK_F12) {
+                    frameCapture.requestScreenshot();
+                } else if (ke.getKeyCode() == KeyEvent.VK_M) {
+                    minimap.setVisible(!minimap.isVisible());
                 } else if (ke.getKeyCode() == KeyEvent.VK_TAB || ke.getKeyCode() == KeyEvent.VK_BACK_QUOTE) {
                     specialStats.setVisible(true);
                     normalStats.setVisible(false);
@@ -269,41 +376,36 @@ public class GameScene extends Scene {
                         keyTab = true;
                         ticksUntilHideSpecialStats = 60;
                     }
-                } else if (DEBUG_ALLOW_CAMERA_Z_CHANGES && ke.getKeyCode() == KeyEvent.VK_PAGE_UP) {
-                    Player player = map.getPlayer();
-                    player.setZ(Math.min(1 - 1 / 8f, player.getZ() + 1 / 128f));
-                } else if (DEBUG_ALLOW_CAMERA_Z_CHANGES && ke.getKeyCode() == KeyEvent.VK_PAGE_DOWN) {
-                    Player player = map.getPlayer();
-                    player.setZ(Math.max(1 / 8f, player.getZ() - 1 / 128f));
-                } else if (DEBUG_ALLOW_CAMERA_Z_CHANGES && ke.getKeyCode() == KeyEvent.VK_HOME) {
-                    Player player = map.getPlayer();
-                    player.setZ(0.5f);
                 } else {
-                    keyDown(ke.getKeyCode(), true);
+                    postKeyDown(ke.getKeyCode(), true);
                 }
             }
 
             public void keyReleased(KeyEvent ke) {
-                keyDown(ke.getKeyCode(), false);
+                if (ke.getKeyCode() == KeyEvent.VK_TAB || ke.getKeyCode() == KeyEvent.VK_BACK_QUOTE) {
+                    keyTab = false;
+                } else {
+                    postKeyDown(ke.getKeyCode(), false);
+                }
             }
         });
         setMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent me) {
                 if (!paused) {
-                    mousePressed = true;
+                    postMousePressed(true);
                 }
             }
 
             @Override
             public void mouseReleased(MouseEvent me) {
-                mousePressed = false;
+                postMousePressed(false);
             }
 
             @Override
             public void mouseExited(MouseEvent me) {
-                mousePressed = false;
-                crosshair.setLocation(getWidth() / 2, getHeight() / 2);
+                postMousePressed(false);
+                setCrosshairLocation(getWidth() / 2, getHeight() / 2);
             }
         });
         setMouseMotionListener(new MouseMotionListener() {
@@ -315,13 +417,13 @@ public class GameScene extends Scene {
 
             @Override
             public void mouseMoved(MouseEvent me) {
-                Point2D.Float pos = getLocalLocation(me.getX(), me.getY());
+                Point2D.Float pos = getLocalLocation(me.getX(), me.getY(), mouseLocation);
                 pos.x = Math.round(pos.x);
                 pos.y = Math.round(pos.y);
                 if (pos.x >= 0 && pos.x < getWidth() && pos.y >= 0 && pos.y < getHeight()) {
-                    crosshair.setLocation(pos.x, pos.y);
+                    setCrosshairLocation(pos.x, pos.y);
                 } else {
-                    crosshair.setLocation(getWidth() / 2, getHeight() / 2);
+                    setCrosshairLocation(getWidth() / 2, getHeight() / 2);
                 }
             }
         });
@@ -338,15 +440,37 @@ public class GameScene extends Scene {
             public void focusLost(FocusEvent fe) {
                 focusLostLabel.setVisible(gameOverMessage == null);
                 paused = true;
+                simulation.setPaused(true);
+                simulation.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        resetKeys();
+                    }
+                });
+                setCrosshairLocation(getWidth() / 2, getHeight() / 2);
             }
         });
 
-        setLevel(0);
+        // Start on this thread, so the first frame has a snapshot to draw
+        if (setLevel(0)) {
+            publishSnapshot();
+            if (takeSnapshot()) {
+                updateFromSnapshot();
+            }
+            simulation.start();
+        }
+    }
+
+    @Override
+    public void onUnload() {
+        simulation.stop();
+        frameCapture.shutdown();
     }
 
     @Override
     public void onResize() {
         renderer.setSize(getWidth(), getHeight());
+        hud.setSize(getWidth(), getHeight());
 
         // Warning splash
         warningSplash.removeAllSubviews();
@@ -385,6 +509,9 @@ public class GameScene extends Scene {
         // FPS
         fpsLabel.setLocation(getWidth() - UI_SPACING, UI_SPACING);
 
+        // Minimap, below the FPS label
+        minimap.setLocation(getWidth() - UI_SPACING, UI_SPACING * 2 + messageFont.getHeight());
+
         // UI Labels
         focusLostLabel.setLocation(getWidth() / 2, getHeight() / 2);
         if (gameOverMessage != null) {
@@ -405,7 +532,11 @@ public class GameScene extends Scene {
         App.getApp().getAudio(soundName).play();
     }
 
-    private void setLevel(int level) {
+    /**
+     * Loads a level. Called by the simulation, or before the simulation starts. Returns false if
+     * the level couldn't be loaded.
+     */
+    private boolean setLevel(int level) {
         this.level = level;
 
         Player oldPlayer = null;
@@ -415,15 +546,22 @@ public class GameScene extends Scene {
         }
 
         try {
-            map = new Map(textureCache, messageQueue, "/maps/level" + level + ".txt", oldPlayer, stats);
+            map = new Map(textureManager, messageQueue, "/maps/level" + level + ".txt", oldPlayer, stats);
         } catch (IOException ex) {
             ex.printStackTrace();
-            App.getApp().popScene();
-            return;
+            EventQueue.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    App.getApp().popScene();
+                }
+            });
+            return false;
         }
 
         collisionDetection = new CollisionDetection(map);
-        renderer.setMap(map);
+        textureManager.setLevelTextures(map.getTextureNames());
+        wallDecals = new WallDecals(map, palette);
+        mapSnapshot = null;
 
         if (level != 0) {
             setMessage("LEVEL " + (level + 1));
@@ -435,16 +573,151 @@ public class GameScene extends Scene {
         turnVelocity = 0;
 
         hasWon = false;
-        if (gameOverMessage != null) {
-            gameOverMessage.removeFromSuperview();
-            gameOverMessage = null;
+        gameOverText = null;
+
+        playSound("/sound/startlevel.wav");
+        return true;
+    }
+
+    /**
+     * Copies what is shown of the game into the back snapshot, and publishes it. Called by the
+     * simulation after each tick.
+     */
+    private void publishSnapshot() {
+        Snapshot s = backSnapshot;
+        if (s.sourceMap == map) {
+            s.map.copyFrom(map, mapSnapshot);
+        } else {
+            // Either the map is new, or this snapshot was last used for the previous map
+            s.map = mapSnapshot == null ? new MapSnapshot(map) : new MapSnapshot(map, mapSnapshot);
+            s.sourceMap = map;
         }
-        if (gameOverBackground != null) {
+        mapSnapshot = s.map;
+
+        Player player = map.getPlayer();
+        s.tickTime = simulation.getLastTickTime();
+        s.level = level;
+        s.numSecrets = map.getNumSecrets();
+        s.numEnemies = map.getNumEnemies();
+        s.playerAlive = player.isAlive();
+        s.playerHitRecently = player.wasHitRecently();
+        s.health = player.getHealth();
+        s.ammo = player.getAmmo();
+        s.secrets = player.getSecrets();
+        s.kills = player.getKills();
+        for (int i = 0; i < Key.NUM_KEYS; i++) {
+            s.keys[i] = player.hasKey(i + 1);
+        }
+        for (int i = 0; i < s.messages.length; i++) {
+            s.messages[i] = messageQueue.get(i);
+        }
+        s.speed = Math.abs(runVelocity) + Math.abs(strafeVelocity);
+        s.gunBlast = showGunBlast;
+        s.hasWon = hasWon;
+        s.gameOverText = gameOverText;
+
+        synchronized (snapshotLock) {
+            if (snapshotPending && s.map.isSameMap(pendingSnapshot.map)) {
+                // The pending snapshot was never drawn
+                s.map.addChangedTiles(pendingSnapshot.map);
+            }
+            backSnapshot = pendingSnapshot;
+            pendingSnapshot = s;
+            snapshotPending = true;
+        }
+    }
+
+    /**
+     * Takes the latest published snapshot, if there is a new one. Called on the event thread.
+     */
+    private boolean takeSnapshot() {
+        synchronized (snapshotLock) {
+            if (!snapshotPending) {
+                return false;
+            }
+            Snapshot s = snapshot;
+            snapshot = pendingSnapshot;
+            pendingSnapshot = s;
+            snapshotPending = false;
+            return true;
+        }
+    }
+
+    /**
+     * Updates the views from the current snapshot.
+     */
+    private void updateFromSnapshot() {
+        Snapshot s = snapshot;
+        boolean newMap = !s.map.isSameMap(renderer.getMap());
+        renderer.setMap(s.map);
+        minimap.setMap(s.map);
+        if (newMap) {
+            secretsLabel.setSuffix("/" + s.numSecrets);
+            enemiesLabel.setSuffix("/" + s.numEnemies);
+            setCrosshairLocation(getWidth() / 2, getHeight() / 2);
+        }
+
+        warningSplash.setVisible(s.playerHitRecently);
+        for (int i = 0; i < messageLabels.length; i++) {
+            messageLabels[i].setText(s.messages[i]);
+        }
+        for (int i = 0; i < Key.NUM_KEYS; i++) {
+            keys[i].setVisible(s.keys[i]);
+        }
+        healthLabel.setValue(s.health);
+        ammoLabel.setValue(s.ammo);
+        levelLabel.setValue(s.level + 1);
+        secretsLabel.setValue(s.secrets);
+        enemiesLabel.setValue(s.kills);
+
+        // Game over
+        if (s.hasWon && gameOverBackground == null) {
+            gameOverBackground = new View(0, 0, getWidth(), getHeight());
+            gameOverBackground.setBackgroundColor(new Color(0, 0, 0, 0.25f));
+            hud.addSubview(gameOverBackground, 0);
+        } else if (!s.hasWon && gameOverBackground != null) {
             gameOverBackground.removeFromSuperview();
             gameOverBackground = null;
         }
+        if (!Objects.equals(s.gameOverText, gameOverMessageText)) {
+            gameOverMessageText = s.gameOverText;
+            if (gameOverMessage != null) {
+                gameOverMessage.removeFromSuperview();
+                gameOverMessage = null;
+            }
+            if (gameOverMessageText != null) {
+                gameOverMessage = Label.makeMultilineLabel(messageFont, gameOverMessageText, 0.5f);
+                gameOverMessage.setLocation(getWidth() / 2, getHeight() / 2);
+                gameOverMessage.setAnchor(0.5f, 0.5f);
+                hud.addSubview(gameOverMessage);
+            }
+        }
+    }
 
-        playSound("/sound/startlevel.wav");
+    /**
+     * Moves the crosshair, and sets the simulation's aim. Called on the event thread.
+     */
+    private void setCrosshairLocation(float x, float y) {
+        crosshair.setLocation(x, y);
+        aim = ((long) (int) x << 32) | ((int) y & 0xffffffffL);
+    }
+
+    private void postKeyDown(final int keyCode, final boolean down) {
+        simulation.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                keyDown(keyCode, down);
+            }
+        });
+    }
+
+    private void postMousePressed(final boolean pressed) {
+        simulation.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                mousePressed = pressed;
+            }
+        });
     }
 
     private void keyDown(int keyCode, boolean down) {
@@ -478,14 +751,36 @@ public class GameScene extends Scene {
             case KeyEvent.VK_C:
                 keyStrafeModifier = down;
                 break;
-            case KeyEvent.VK_TAB:
-            case KeyEvent.VK_BACK_QUOTE:
-                keyTab = down;
+            case KeyEvent.VK_PAGE_UP:
+                if (DEBUG_ALLOW_CAMERA_Z_CHANGES && down) {
+                    Player player = map.getPlayer();
+                    player.setZ(Math.min(1 - 1 / 8f, player.getZ() + 1 / 128f));
+                }
+                break;
+            case KeyEvent.VK_PAGE_DOWN:
+                if (DEBUG_ALLOW_CAMERA_Z_CHANGES && down) {
+                    Player player = map.getPlayer();
+                    player.setZ(Math.max(1 / 8f, player.getZ() - 1 / 128f));
+                }
+                break;
+            case KeyEvent.VK_HOME:
+                if (DEBUG_ALLOW_CAMERA_Z_CHANGES && down) {
+                    map.getPlayer().setZ(0.5f);
+                }
                 break;
         }
     }
 
+    /**
+     * Runs a console command, while holding the simulation lock. Called on the event thread.
+     */
     public String doCommand(String command) {
+        synchronized (simulation.getLock()) {
+            return doCommandLocked(command);
+        }
+    }
+
+    private String doCommandLocked(String command) {
         Player player = map.getPlayer();
 
         if (command == null) {
@@ -501,12 +796,22 @@ public class GameScene extends Scene {
                     "Space/mouse1 Fire\n" +
                     "TAB          Show status\n" +
                     "X            Show/hide crosshair\n" +
-                    "R            Show/hide frame rate\n\n" +
+                    "R            Show/hide frame rate\n" +
+                    "M            Show/hide map\n" +
+                    "F12          Save screenshot\n\n" +
                     "Commands:\n" +
                     "stats        Show stats\n" +
                     "volume x     Set audio volume (from 0 to " + VOLUME_SCALE + ")\n" +
                     "shading      Enable/disable depth shading\n" +
+                    "lighting     Enable/disable dynamic lighting\n" +
                     "scaling      Enable/disable auto pixel scaling\n" +
+                    "palette      Enable/disable 8-bit palette mode (after restart)\n" +
+                    "textures x   Show texture memory, or set the budget (in MB)\n" +
+                    "textures all Show the memory of each texture and mip level\n" +
+                    "offheap      Enable/disable off-heap texture storage (after restart)\n" +
+                    "screenshot   Save a screenshot\n" +
+                    "record       Start/stop recording raw video\n" +
+                    "overlay x    Show render heatmap (none, overdraw, mip, steps)\n" +
                     "level x      Skip to level x (from 1 to " + NUM_LEVELS + ")\n" +
                     "ammo         Give yourself some ammo\n" +
                     "health       Give yourself a health kit\n" +
@@ -533,10 +838,68 @@ public class GameScene extends Scene {
             renderer.setDepthShadingEnabled(!renderer.isDepthShadingEnabled());
             Settings.putBoolean(Settings.DEPTH_SHADING, renderer.isDepthShadingEnabled());
             return "Depth shading is now " + (renderer.isDepthShadingEnabled() ? "on" : "off");
+        } else if ("LIGHTING".equalsIgnoreCase(command)) {
+            renderer.setLightingEnabled(!renderer.isLightingEnabled());
+            Settings.putBoolean(Settings.LIGHTING, renderer.isLightingEnabled());
+            return "Lighting is now " + (renderer.isLightingEnabled() ? "on" : "off");
         } else if ("SCALING".equalsIgnoreCase(command)) {
             App.getApp().setAutoPixelScale(!App.getApp().isAutoPixelScale());
             Settings.putBoolean(Settings.AUTO_PIXEL_SCALE, App.getApp().isAutoPixelScale());
             return "Auto pixel scaling is now " + (App.getApp().isAutoPixelScale() ? "on" : "off");
+        } else if (command.length() >= 7 && "OVERLAY".equalsIgnoreCase(command.substring(0, 7))) {
+            String name = command.substring(7).trim();
+            SoftRender3D.DebugOverlay overlay;
+            if (name.length() == 0) {
+                SoftRender3D.DebugOverlay[] overlays = SoftRender3D.DebugOverlay.values();
+                overlay = overlays[(renderer.getDebugOverlay().ordinal() + 1) % overlays.length];
+            } else {
+                try {
+                    overlay = SoftRender3D.DebugOverlay.valueOf(name.toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException ex) {
+                    return "Invalid overlay";
+                }
+            }
+            renderer.setDebugOverlay(overlay);
+            return "Overlay is now " + overlay.name().toLowerCase(Locale.ENGLISH);
+        } else if ("SCREENSHOT".equalsIgnoreCase(command)) {
+            // The console hides the game view, so capture the next frame drawn after it closes
+            frameCapture.requestScreenshot();
+            return "Screenshot will be saved to " + frameCapture.getDirectory();
+        } else if ("RECORD".equalsIgnoreCase(command)) {
+            if (frameCapture.isRecording()) {
+                frameCapture.stopRecording();
+                return "Recording stopped";
+            } else {
+                frameCapture.startRecording();
+                return "Recording to " + frameCapture.getDirectory();
+            }
+        } else if (command.length() >= 8 && "TEXTURES".equalsIgnoreCase(command.substring(0, 8))) {
+            String budget = command.substring(8).trim();
+            if ("ALL".equalsIgnoreCase(budget)) {
+                return textureManager.getReport();
+            } else if (budget.length() > 0) {
+                float budgetMB;
+                try {
+                    budgetMB = Float.parseFloat(budget);
+                } catch (NumberFormatException ex) {
+                    return "Invalid budget";
+                }
+                if (budgetMB < 0) {
+                    return "Invalid budget";
+                }
+                Settings.putFloat(Settings.TEXTURE_BUDGET, budgetMB);
+                textureManager.setBudget((long) (budgetMB * 1024 * 1024));
+            }
+            return (textureManager.getDescription() + "\n" +
+                    "decals=" + wallDecals.getNumFaceTextures() + " faces, " + wallDecals.getMemoryUsage() + " bytes");
+        } else if ("OFFHEAP".equalsIgnoreCase(command)) {
+            boolean offHeap = !Settings.getBoolean(Settings.OFF_HEAP_TEXTURES, false);
+            Settings.putBoolean(Settings.OFF_HEAP_TEXTURES, offHeap);
+            return "Off-heap textures will be " + (offHeap ? "on" : "off") + " after restart";
+        } else if ("PALETTE".equalsIgnoreCase(command)) {
+            boolean paletteMode = !Settings.getBoolean(Settings.PALETTE_MODE, false);
+            Settings.putBoolean(Settings.PALETTE_MODE, paletteMode);
+            return "Palette mode will be " + (paletteMode ? "on" : "off") + " after restart";
         } else if ("FREEZE".equalsIgnoreCase(command)) {
             player.setFreezeEnemies(!player.isFreezeEnemies());
             if (player.isFreezeEnemies()) {
@@ -615,13 +978,47 @@ public class GameScene extends Scene {
 
     @Override
     public void onTick() {
-        crosshair.setVisible(showCrosshair && map.getPlayer().isAlive());
+        simulation.setPaused(paused);
+        if (takeSnapshot()) {
+            updateFromSnapshot();
+        }
 
-        if (paused) {
-            resetKeys();
-            return;
+        crosshair.setVisible(showCrosshair && snapshot.playerAlive);
+        fpsLabel.setValue(App.getApp().getActualFrameRate());
+        if (specialStats.isVisible()) {
+            if (ticksUntilHideSpecialStats > 0) {
+                ticksUntilHideSpecialStats--;
+            }
+            if (!keyTab && ticksUntilHideSpecialStats <= 0) {
+                specialStats.setVisible(false);
+                normalStats.setVisible(true);
+            }
+        }
+
+        if (!paused) {
+            updateGunLocation();
+        }
+    }
+
+    /**
+     * Draws the latest snapshot, interpolated from the previous tick by the time since its tick was
+     * due. Frames are drawn one tick behind the simulation, so that the frame rate can be higher
+     * than the simulation rate.
+     */
+    @Override
+    public void onFrame() {
+        if (takeSnapshot()) {
+            updateFromSnapshot();
         }
+        if (snapshot.map != null) {
+            renderer.setInterpolation((float) (System.nanoTime() - snapshot.tickTime) / simulation.getTickNanos());
+        }
+    }
 
+    /**
+     * Ticks the game. Called on the simulation thread.
+     */
+    private void tickSimulation() {
         // Handle blocking actions
         if (nextAction != ACTION_NONE) {
             nextActionTicksRemaining--;
@@ -634,76 +1031,47 @@ public class GameScene extends Scene {
 
                 nextAction = ACTION_NONE;
             }
-            return;
-        }
-
-        // Move entities, handle actions
-        map.tick();
-
-        // Move player
-        tickPlayer();
-        Player player = map.getPlayer();
-        renderer.setCamera(player.getX(), player.getY(), player.getZ(), player.getDirection());
-        if (map.isExitFound() && !hasWon) {
-            if (level < NUM_LEVELS - 1) {
-                nextAction = ACTION_NEW_LEVEL;
-            } else {
-                nextAction = ACTION_WIN;
+        } else {
+            // Move entities, handle actions
+            map.tick();
+
+            // Move player
+            tickPlayer();
+            Player player = map.getPlayer();
+            if (map.isExitFound() && !hasWon) {
+                if (level < NUM_LEVELS - 1) {
+                    nextAction = ACTION_NEW_LEVEL;
+                } else {
+                    nextAction = ACTION_WIN;
+                }
+                nextActionTicksRemaining = 90;
             }
-            nextActionTicksRemaining = 90;
-        }
+            messageQueue.tick();
 
-        // Update the HUD
-        warningSplash.setVisible(player.wasHitRecently());
-        messageQueue.tick();
-        for (int i = 0; i < messageQueue.getMaxSize(); i++) {
-            messageLabels[i].setText(messageQueue.get(i));
-        }
-        for (int i = 0; i < Key.NUM_KEYS; i++) {
-            keys[i].setVisible(player.hasKey(i + 1));
-        }
-        fpsLabel.setText(String.format("%.1f fps", App.getApp().getActualFrameRate()));
-        fpsLabel.sizeToFit();
-        healthLabel.setText(Integer.toString(player.getHealth()));
-        healthLabel.sizeToFit();
-        ammoLabel.setText(Integer.toString(player.getAmmo()));
-        ammoLabel.sizeToFit();
-        levelLabel.setText("Level: " + (level + 1) + "/" + NUM_LEVELS);
-        levelLabel.sizeToFit();
-        secretsLabel.setText("Secrets: " + player.getSecrets() + "/" + map.getNumSecrets());
-        secretsLabel.sizeToFit();
-        enemiesLabel.setText("Enemies: " + player.getKills() + "/" + map.getNumEnemies());
-        enemiesLabel.sizeToFit();
-        if (specialStats.isVisible()) {
-            if (ticksUntilHideSpecialStats > 0) {
-                ticksUntilHideSpecialStats--;
+            if (!player.isAlive()) {
+                gunBlastCountdown = 0;
             }
-            if (!keyTab && ticksUntilHideSpecialStats <= 0) {
-                specialStats.setVisible(false);
-                normalStats.setVisible(true);
+            showGunBlast = gunBlastCountdown > 0;
+            if (showGunBlast) {
+                gunBlastCountdown--;
             }
         }
 
-        updateGunLocation();
+        publishSnapshot();
     }
 
     private void updateGunLocation() {
-        if (map == null) {
+        Snapshot s = snapshot;
+        if (s.map == null) {
             return;
         }
-        Player player = map.getPlayer();
-
-        if (!player.isAlive()) {
-            gunBlastCountdown = 0;
-        }
 
         float displayWeaponOffset = crosshair.getX();
         displayWeaponOffset = Math.max(displayWeaponOffset, 32);
         displayWeaponOffset = Math.min(displayWeaponOffset, getWidth() - gunView.getWidth());
 
         // Make the gun bob
-        float velocity = Math.abs(runVelocity) + Math.abs(strafeVelocity);
-        velocity = Math.min(velocity, MAX_RUN_VELOCITY);
+        float velocity = Math.min(s.speed, MAX_RUN_VELOCITY);
         double angle = (System.currentTimeMillis() / 80.0) % (Math.PI * 2);
         int maxBob = (int) Math.ceil(gunView.getHeight() * 0.75f * MAX_RUN_VELOCITY);
         int bob = (int) Math.round(gunView.getHeight() * 0.75f * velocity * (Math.sin(angle) + 0.5f));
@@ -711,8 +1079,7 @@ public class GameScene extends Scene {
         float x = gunView.getWidth() * 0.4f + displayWeaponOffset;
         float y = Math.round(getHeight() + bob - gunView.getWidth() + maxBob);
 
-        if (gunBlastCountdown > 0) {
-            gunBlastCountdown--;
+        if (s.gunBlast) {
             gunBlastView.setVisible(true);
             gunView.setVisible(false);
             x += 3;
@@ -727,7 +1094,7 @@ public class GameScene extends Scene {
         if (Math.abs(dx) > stepSize) {
             x = gunView.getX() + Math.signum(dx) * stepSize;
         }
-        if (!player.isAlive()) {
+        if (!s.playerAlive) {
             stepSize = (int) Math.ceil(gunView.getHeight() / 48);
             y += gunView.getHeight() + maxBob;
             float dy = y - gunView.getY();
@@ -750,7 +1117,6 @@ public class GameScene extends Scene {
         keyStrafeModifier = false;
         keyFire = false;
         mousePressed = false;
-        crosshair.setLocation(getWidth() / 2, getHeight() / 2);
     }
 
     private void fire() {
@@ -771,22 +1137,35 @@ public class GameScene extends Scene {
             player.setAmmo(player.getAmmo() - 1);
         }
         gunBlastCountdown = GUN_BLAST_COUNTDOWN;
+        map.getLightGrid().addFlash(player.getX(), player.getY(), 4, 160, 8);
 
-        int weaponAimX = (int) crosshair.getX();
-        float aimAngle = renderer.getAngleAt(weaponAimX);
-        aimAngle += Math.random() * 4 - 2; // +/- 2 degrees
-
-        Point2D.Float p = map.getWallCollision(player.getX(), player.getY(), aimAngle);
-        if (p == null) {
-            return;
-        }
+        long aim = this.aim;
+        int weaponAimX = (int) (aim >> 32);
+        int weaponAimY = (int) aim;
+        float spread = (float) (Math.random() * 4 - 2); // +/- 2 degrees
+        float aimAngle = renderer.getAngleAt(weaponAimX, player.getDirection()) + spread;
 
+        Point2D.Float p = null;
         boolean hitSomething = false;
-        List<Entity> hitEnemies = map.getCollisions(Enemy.class, player.getX(), player.getY(), p.x, p.y);
-        if (hitEnemies.size() > 0) {
-            for (Entity entity : hitEnemies) {
-                if (entity instanceof Enemy) {
-                    hitSomething |= ((Enemy) entity).hurt(6 + (int) (Math.random() * 3)); //6..8
+        if (renderer.isEntityPickingEnabled()) {
+            // Hit what was drawn under the crosshair in the last frame
+            int spreadX = Math.round((float) Math.tan(Math.toRadians(spread)) * renderer.getFocalDistance());
+            Entity entity = renderer.getEntityAt(weaponAimX + spreadX, weaponAimY);
+            if (entity instanceof Enemy) {
+                hitSomething = ((Enemy) entity).hurt(6 + (int) (Math.random() * 3)); //6..8
+            }
+        } else {
+            p = map.getWallCollision(player.getX(), player.getY(), aimAngle);
+            if (p == null) {
+                return;
+            }
+
+            List<Entity> hitEnemies = map.getCollisions(Enemy.class, player.getX(), player.getY(), p.x, p.y);
+            if (hitEnemies.size() > 0) {
+                for (Entity entity : hitEnemies) {
+                    if (entity instanceof Enemy) {
+                        hitSomething |= ((Enemy) entity).hurt(6 + (int) (Math.random() * 3)); //6..8
+                    }
                 }
             }
         }
@@ -794,7 +1173,14 @@ public class GameScene extends Scene {
             stats.numShotsFiredHit++;
         } else {
             // Miss - show the hit on the wall
-            map.addEntity(new BlastMark(blastTextures, p.x, p.y, GUN_BLAST_COUNTDOWN * 3 / 2));
+            if (p == null) {
+                p = map.getWallCollision(player.getX(), player.getY(), aimAngle);
+            }
+            if (p != null) {
+                map.addEntity(new BlastMark(blastTextures, p.x, p.y, GUN_BLAST_COUNTDOWN * 3 / 2));
+                wallDecals.addScorchMark(p.x, p.y, player.getZ(),
+                        (float) Math.cos(Math.toRadians(aimAngle)), (float) Math.sin(Math.toRadians(aimAngle)));
+            }
         }
     }
 
@@ -818,23 +1204,11 @@ public class GameScene extends Scene {
         keyFire = false;
         gameOverTicksRemaining = 60 * 5;
         map.getPlayer().setAlive(false);
-        if (gameOverBackground == null) {
-            gameOverBackground = new View(0, 0, getWidth(), getHeight());
-            gameOverBackground.setBackgroundColor(new Color(0, 0, 0, 0.25f));
-            addSubview(gameOverBackground, indexOfSubview(renderer) + 1);
-        }
         setGameOverMessage("YOU WIN.\n\n" + statsDescription + "\n\n");
     }
 
     private void setGameOverMessage(String text) {
         gameOverText = text;
-        if (gameOverMessage != null) {
-            gameOverMessage.removeFromSuperview();
-        }
-        gameOverMessage = Label.makeMultilineLabel(messageFont, text, 0.5f);
-        gameOverMessage.setLocation(getWidth() / 2, getHeight() / 2);
-        gameOverMessage.setAnchor(0.5f, 0.5f);
-        addSubview(gameOverMessage);
     }
 
     private void tickPlayer() {
@@ -0,0 +1,312 @@
+package com.brackeen.scared;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-tile light levels. Each tile has a baked ambient level, plus the contributions of point lights.
+ * Light spreads from a point light through open tiles only, so it doesn't leak through walls.
+ * Walls are lit by the open tile in front of them.
+ * When a light changes, only the tiles within its radius are updated. When a tile starts or stops
+ * blocking light (a door opens or closes, or a wall moves), the ambient level around it is rebaked,
+ * and the lights that reach it are spread again.
+ * <p>
+ * {@link #NORMAL_LIGHT} is unlit; lower is darker and higher is brighter.
+ */
+public class LightGrid {
+
+    public static final int NORMAL_LIGHT = 256;
+    public static final int MAX_LIGHT = 512;
+
+    // Ambient occlusion: each solid neighbor darkens an open tile by this much
+    private static final int AMBIENT_OCCLUSION = 6;
+
+    public static class Light {
+        private final float x;
+        private final float y;
+        private final float radius;
+        private int intensity;
+        private final int startIntensity;
+        private final int durationTicks;
+        private int ticks;
+
+        // Contributed amount for each lit tile, so that removing the light is exact
+        private int[] tileIndices = new int[0];
+        private int[] amounts = new int[0];
+
+        private Light(float x, float y, float radius, int intensity, int durationTicks) {
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.intensity = intensity;
+            this.startIntensity = intensity;
+            this.durationTicks = durationTicks;
+        }
+
+        public int getIntensity() {
+            return intensity;
+        }
+    }
+
+    private final Map map;
+    private final int width;
+    private final int height;
+    private final int[] light;
+    private final List<Light> lights = new ArrayList<>();
+    private final List<Light> flashes = new ArrayList<>();
+
+    // The baked ambient level of each tile, and whether each tile blocked light when it was baked
+    private final int[] ambient;
+    private final boolean[] blocking;
+
+    // Doors block light only while closed, so they are checked each tick
+    private final int[] doorIndices;
+
+    // Scratch space for spreading light
+    private final int[] spreadQueue;
+    private final int[] spreadMarks;
+    private int spreadMark;
+
+    public LightGrid(Map map) {
+        this.map = map;
+        this.width = map.getWidth();
+        this.height = map.getHeight();
+        this.light = new int[width * height];
+        this.ambient = new int[width * height];
+        this.blocking = new boolean[width * height];
+        this.spreadQueue = new int[width * height];
+        this.spreadMarks = new int[width * height];
+        int numDoors = 0;
+        int[] doorIndices = new int[16];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (map.getTileAt(x, y).type == Tile.TYPE_DOOR) {
+                    if (numDoors == doorIndices.length) {
+                        doorIndices = Arrays.copyOf(doorIndices, numDoors * 2);
+                    }
+                    doorIndices[numDoors++] = x + y * width;
+                }
+            }
+        }
+        this.doorIndices = Arrays.copyOf(doorIndices, numDoors);
+        bakeAmbientLight();
+    }
+
+    private void bakeAmbientLight() {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                blocking[x + y * width] = isBlocking(x, y);
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = x + y * width;
+                ambient[index] = getAmbientLight(x, y);
+                light[index] = ambient[index];
+            }
+        }
+    }
+
+    private int getAmbientLight(int tileX, int tileY) {
+        int solidNeighbors = 0;
+        for (int ny = tileY - 1; ny <= tileY + 1; ny++) {
+            for (int nx = tileX - 1; nx <= tileX + 1; nx++) {
+                if ((nx != tileX || ny != tileY) && isBlocking(nx, ny)) {
+                    solidNeighbors++;
+                }
+            }
+        }
+        return NORMAL_LIGHT - solidNeighbors * AMBIENT_OCCLUSION;
+    }
+
+    /**
+     * Updates the light around a tile that may have started or stopped blocking light. The
+     * ambient level of the tile and its neighbors is rebaked, and lights that reach the tile are
+     * spread again. Does nothing if the tile's blocking hasn't changed.
+     */
+    public void updateTile(int tileX, int tileY) {
+        if (tileX < 0 || tileY < 0 || tileX >= width || tileY >= height) {
+            return;
+        }
+        int index = tileX + tileY * width;
+        boolean nowBlocking = isBlocking(tileX, tileY);
+        if (blocking[index] == nowBlocking) {
+            return;
+        }
+        blocking[index] = nowBlocking;
+
+        for (int ny = Math.max(0, tileY - 1); ny <= Math.min(height - 1, tileY + 1); ny++) {
+            for (int nx = Math.max(0, tileX - 1); nx <= Math.min(width - 1, tileX + 1); nx++) {
+                int neighbor = nx + ny * width;
+                int newAmbient = getAmbientLight(nx, ny);
+                light[neighbor] += newAmbient - ambient[neighbor];
+                ambient[neighbor] = newAmbient;
+            }
+        }
+
+        respread(lights, tileX, tileY);
+        respread(flashes, tileX, tileY);
+    }
+
+    /**
+     * Spreads again each light whose radius reaches a tile.
+     */
+    private void respread(List<Light> lightsToCheck, int tileX, int tileY) {
+        for (int i = 0; i < lightsToCheck.size(); i++) {
+            Light l = lightsToCheck.get(i);
+            float dx = tileX + 0.5f - l.x;
+            float dy = tileY + 0.5f - l.y;
+            if (dx * dx + dy * dy < l.radius * l.radius) {
+                unspread(l);
+                spread(l);
+            }
+        }
+    }
+
+    private boolean isBlocking(int tileX, int tileY) {
+        Tile tile = map.getTileAt(tileX, tileY);
+        return tile == null || (tile.type != Tile.TYPE_WINDOW && tile.isSolid());
+    }
+
+    /**
+     * Gets the light level of a tile, from 0 to {@link #MAX_LIGHT}. Tiles outside the map are
+     * {@link #NORMAL_LIGHT}.
+     */
+    public int getLight(int tileX, int tileY) {
+        if (tileX < 0 || tileY < 0 || tileX >= width || tileY >= height) {
+            return NORMAL_LIGHT;
+        }
+        int level = light[tileX + tileY * width];
+        return Math.max(0, Math.min(MAX_LIGHT, level));
+    }
+
+    /**
+     * Copies the light level of every tile, as returned by {@link #getLight(int, int)}, into an
+     * array indexed by (x + y * width).
+     */
+    public void getLights(int[] dst) {
+        for (int i = 0; i < light.length; i++) {
+            dst[i] = Math.max(0, Math.min(MAX_LIGHT, light[i]));
+        }
+    }
+
+    /**
+     * Adds a light that stays until removed.
+     */
+    public Light addLight(float x, float y, float radius, int intensity) {
+        Light newLight = new Light(x, y, radius, intensity, 0);
+        lights.add(newLight);
+        spread(newLight);
+        return newLight;
+    }
+
+    /**
+     * Adds a light that fades out over the specified number of ticks, then is removed.
+     */
+    public Light addFlash(float x, float y, float radius, int intensity, int durationTicks) {
+        Light newLight = new Light(x, y, radius, intensity, durationTicks);
+        flashes.add(newLight);
+        spread(newLight);
+        return newLight;
+    }
+
+    public void removeLight(Light oldLight) {
+        if (lights.remove(oldLight) || flashes.remove(oldLight)) {
+            unspread(oldLight);
+        }
+    }
+
+    public void tick() {
+        for (int i = 0; i < doorIndices.length; i++) {
+            updateTile(doorIndices[i] % width, doorIndices[i] / width);
+        }
+
+        for (int i = flashes.size() - 1; i >= 0; i--) {
+            Light flash = flashes.get(i);
+            flash.ticks++;
+            unspread(flash);
+            if (flash.ticks >= flash.durationTicks) {
+                flashes.remove(i);
+            } else {
+                flash.intensity = flash.startIntensity * (flash.durationTicks - flash.ticks) / flash.durationTicks;
+                spread(flash);
+            }
+        }
+    }
+
+    private void unspread(Light l) {
+        for (int i = 0; i < l.tileIndices.length; i++) {
+            light[l.tileIndices[i]] -= l.amounts[i];
+        }
+        l.tileIndices = new int[0];
+        l.amounts = new int[0];
+    }
+
+    /**
+     * Spreads light from the light's tile through open tiles, breadth-first, within its radius.
+     */
+    private void spread(Light l) {
+        int startX = (int) l.x;
+        int startY = (int) l.y;
+        if (startX < 0 || startY < 0 || startX >= width || startY >= height || l.intensity == 0) {
+            return;
+        }
+
+        spreadMark++;
+        if (spreadMark == 0) {
+            Arrays.fill(spreadMarks, 0);
+            spreadMark = 1;
+        }
+
+        int head = 0;
+        int tail = 0;
+        int startIndex = startX + startY * width;
+        spreadQueue[tail++] = startIndex;
+        spreadMarks[startIndex] = spreadMark;
+
+        int[] tileIndices = new int[16];
+        int[] amounts = new int[16];
+        int count = 0;
+        while (head < tail) {
+            int index = spreadQueue[head++];
+            int tileX = index % width;
+            int tileY = index / width;
+            if (index != startIndex && isBlocking(tileX, tileY)) {
+                continue;
+            }
+            float dx = tileX + 0.5f - l.x;
+            float dy = tileY + 0.5f - l.y;
+            float dist = (float) Math.sqrt(dx * dx + dy * dy);
+            int amount = (int) (l.intensity * (1 - dist / l.radius));
+            if (amount <= 0 && index != startIndex) {
+                continue;
+            }
+            amount = Math.max(0, amount);
+
+            if (count == tileIndices.length) {
+                tileIndices = Arrays.copyOf(tileIndices, count * 2);
+                amounts = Arrays.copyOf(amounts, count * 2);
+            }
+            tileIndices[count] = index;
+            amounts[count] = amount;
+            count++;
+            light[index] += amount;
+
+            for (int dir = 0; dir < 4; dir++) {
+                int nx = tileX + (dir == 0 ? 1 : dir == 1 ? -1 : 0);
+                int ny = tileY + (dir == 2 ? 1 : dir == 3 ? -1 : 0);
+                if (nx >= 0 && ny >= 0 && nx < width && ny < height) {
+                    int neighbor = nx + ny * width;
+                    if (spreadMarks[neighbor] != spreadMark) {
+                        spreadMarks[neighbor] = spreadMark;
+                        spreadQueue[tail++] = neighbor;
+                    }
+                }
+            }
+        }
+
+        l.tileIndices = Arrays.copyOf(tileIndices, count);
+        l.amounts = Arrays.copyOf(amounts, count);
+    }
+}
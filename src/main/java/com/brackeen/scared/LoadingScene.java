@@ -5,13 +5,19 @@ import com.brackeen.scared.entity.Enemy;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 public class LoadingScene extends BaseConsoleScene {
 
-    private final HashMap<String, SoftTexture> textureCache = new HashMap<>();
+    // Default texture memory budget, in MB
+    private static final float DEFAULT_TEXTURE_BUDGET = 32;
+
+    private final BakedTextureCache bakedTextureCache = new BakedTextureCache(
+            new File(System.getProperty("user.home"), ".scared/textures.cache"));
+    private final TextureManager textureManager = new TextureManager(bakedTextureCache,
+            (long) (Settings.getFloat(Settings.TEXTURE_BUDGET, DEFAULT_TEXTURE_BUDGET) * 1024 * 1024));
     private List<Runnable> itemsToLoad;
     private List<BufferedImage> loadedAssets = new ArrayList<>(); // Keep a reference until GameScene is loaded
     private int itemsLoaded = 0;
@@ -32,6 +38,8 @@ public class LoadingScene extends BaseConsoleScene {
         App.log("Scared " + version);
         App.log("Java " + System.getProperty("java.version"));
 
+        textureManager.setOffHeap(Settings.getBoolean(Settings.OFF_HEAP_TEXTURES, false));
+
         itemsToLoad = new ArrayList<>();
         itemsToLoad.add(new Runnable() {
             @Override
@@ -81,18 +89,9 @@ public class LoadingScene extends BaseConsoleScene {
         itemsToLoad.add(new Runnable() {
             @Override
             public void run() {
-                cacheTexture("/sprites/ammo.png");
-                cacheTexture("/sprites/blast1.png");
-                cacheTexture("/sprites/blast2.png");
-                cacheTexture("/sprites/blast3.png");
-                cacheTexture("/sprites/key01.png");
-                cacheTexture("/sprites/key02.png");
-                cacheTexture("/sprites/key03.png");
-                cacheTexture("/sprites/medkit.png");
-                cacheTexture("/sprites/nuclear.png");
-                for (int i = 0; i < Enemy.NUM_IMAGES; i++) {
-                    cacheTexture("/enemy/" + i + ".png");
-                }
+                bakedTextureCache.load();
+
+                registerSprites(textureManager);
             }
         });
 
@@ -100,71 +99,25 @@ public class LoadingScene extends BaseConsoleScene {
         itemsToLoad.add(new Runnable() {
             @Override
             public void run() {
-                // All textures must be a size that is a power-of-two. 128x128, 64x64, etc.
-                String[] textures = {
-                        "door00.png",
-                        "door01.png",
-                        "door02.png",
-                        "door03.png",
-                        "exit00.png",
-                        "exit01.png",
-                        "generator00.png",
-                        "generator01.png",
-                        "wall00.png",
-                        "wall01.png",
-                        "wall02.png",
-                        "wall03.png",
-                        "wall04.png",
-                        "wall05.png",
-                        "wall06.png",
-                        "wall07.png",
-                        "wall08.png",
-                        "wall09.png",
-                        "wall10.png",
-                        "wall11.png",
-                        "wall12.png",
-                        "wall13.png",
-                        "wall14.png",
-                        "wall15.png",
-                        "window00.png",
-                };
-
-                // Create mip-maps
-                final int mipMapCount = 3;
-                for (String textureName : textures) {
-                    String fullname = "/textures/" + textureName;
-                    SoftTexture texture = cacheTexture(fullname, textureName);
-
-                    SoftTexture.DownscaleType downscaleType = SoftTexture.DownscaleType.WEIGHTED_EVEN;
-                    // Hack: Sharpen on odd pixels on these two textures to make their highlights look better
-                    if ("wall01.png".equals(textureName) || "wall06.png".equals(textureName)) {
-                        downscaleType = SoftTexture.DownscaleType.WEIGHTED_ODD;
-                    }
-
-                    for (int i = 0; i < mipMapCount; i++) {
-                        texture.createHalfSizeTexture(downscaleType);
-                        texture = texture.getHalfSizeTexture();
-                        if (texture == null) {
-                            break;
-                        }
-                        downscaleType = SoftTexture.DownscaleType.AVERAGE;
-                    }
-                }
+                registerWallTextures(textureManager);
             }
         });
-    }
 
-    private SoftTexture cacheTexture(String name) {
-        return cacheTexture(name, name);
-    }
-
-    private SoftTexture cacheTexture(String fileName, String cacheName) {
-        App app = App.getApp();
-        BufferedImage image = app.getImage(fileName);
-        loadedAssets.add(image);
-        SoftTexture texture = new SoftTexture(image);
-        textureCache.put(cacheName, texture);
-        return texture;
+        // Palette mode: quantize all textures to 8-bit indices. The palette is created from all
+        // textures, so they are all loaded here. Unused ones are evicted when the first level starts.
+        if (Settings.getBoolean(Settings.PALETTE_MODE, false)) {
+            itemsToLoad.add(new Runnable() {
+                @Override
+                public void run() {
+                    List<SoftTexture> textures = new ArrayList<>();
+                    for (String name : textureManager.getNames()) {
+                        textures.add(textureManager.get(name));
+                    }
+                    textures.add(new SoftTexture(app.getImage("/background/background.png")));
+                    textureManager.setPalette(new Palette(textures));
+                }
+            });
+        }
     }
 
     @Override
@@ -172,7 +125,7 @@ public class LoadingScene extends BaseConsoleScene {
         if (loadNextItem) {
             loadNextItem = false;
             if (itemsToLoad.isEmpty()) {
-                App.getApp().setScene(new GameScene(textureCache));
+                App.getApp().setScene(new GameScene(textureManager));
             } else {
                 Runnable runnable = itemsToLoad.remove(0);
                 runnable.run();
@@ -189,4 +142,77 @@ public class LoadingScene extends BaseConsoleScene {
     public void onDraw(Graphics2D g) {
         loadNextItem = true;
     }
+
+    /**
+     * Registers the sprite and enemy textures.
+     */
+    static void registerSprites(TextureManager textureManager) {
+        List<String> sprites = new ArrayList<>();
+        sprites.add("/sprites/ammo.png");
+        sprites.add("/sprites/blast1.png");
+        sprites.add("/sprites/blast2.png");
+        sprites.add("/sprites/blast3.png");
+        sprites.add("/sprites/key01.png");
+        sprites.add("/sprites/key02.png");
+        sprites.add("/sprites/key03.png");
+        sprites.add("/sprites/medkit.png");
+        sprites.add("/sprites/nuclear.png");
+        for (int i = 0; i < Enemy.NUM_IMAGES; i++) {
+            sprites.add("/enemy/" + i + ".png");
+        }
+
+        // Mip-maps: Transparent pixels are excluded from the average, so that distant
+        // sprites don't get dark fringes.
+        for (String name : sprites) {
+            textureManager.register(name, name, SoftTexture.DownscaleType.ALPHA_WEIGHTED,
+                    SoftTexture.DownscaleType.ALPHA_WEIGHTED);
+        }
+    }
+
+    /**
+     * Registers the wall, door, floor and ceiling textures.
+     */
+    static void registerWallTextures(TextureManager textureManager) {
+        // All textures must be a size that is a power-of-two. 128x128, 64x64, etc.
+        String[] textures = {
+                "door00.png",
+                "door01.png",
+                "door02.png",
+                "door03.png",
+                "exit00.png",
+                "exit01.png",
+                "generator00.png",
+                "generator01.png",
+                "wall00.png",
+                "wall01.png",
+                "wall02.png",
+                "wall03.png",
+                "wall04.png",
+                "wall05.png",
+                "wall06.png",
+                "wall07.png",
+                "wall08.png",
+                "wall09.png",
+                "wall10.png",
+                "wall11.png",
+                "wall12.png",
+                "wall13.png",
+                "wall14.png",
+                "wall15.png",
+                "window00.png",
+        };
+
+        for (String textureName : textures) {
+            String fullname = "/textures/" + textureName;
+
+            SoftTexture.DownscaleType downscaleType = SoftTexture.DownscaleType.WEIGHTED_EVEN;
+            // Hack: Sharpen on odd pixels on these two textures to make their highlights look better
+            if ("wall01.png".equals(textureName) || "wall06.png".equals(textureName)) {
+                downscaleType = SoftTexture.DownscaleType.WEIGHTED_ODD;
+            }
+
+            textureManager.register(textureName, fullname, downscaleType,
+                    SoftTexture.DownscaleType.AVERAGE);
+        }
+    }
 }
@@ -18,10 +18,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 public class Map {
 
@@ -36,24 +38,29 @@ public class Map {
     private final SoftTexture generatorOnTexture;
     private SoftTexture defaultFloorTexture;
     private Tile[][] tiles;
+    private BitSet dirtyTiles;
+    private LightGrid lightGrid;
     private boolean electricityOn = true;
     private boolean exitFound = false;
+    private boolean hasCeilings = false;
+    private boolean skyVisible = true;
     private Tile lastCollidedWall;
+    private final Set<String> textureNames = new HashSet<>();
 
     private int numSecrets = 0;
     private int numEnemies = 0;
 
-    public Map(HashMap<String, SoftTexture> textureCache, MessageQueue messageQueue, String mapName, Player oldPlayer, Stats stats) throws IOException {
+    public Map(TextureManager textureManager, MessageQueue messageQueue, String mapName, Player oldPlayer, Stats stats) throws IOException {
         this.messageQueue = messageQueue;
 
         SoftTexture[] enemyTextures = new SoftTexture[Enemy.NUM_IMAGES];
         for (int i = 0; i < Enemy.NUM_IMAGES; i++) {
-            enemyTextures[i] = textureCache.get("/enemy/" + i + ".png");
+            enemyTextures[i] = getTexture(textureManager, "/enemy/" + i + ".png");
         }
 
-        defaultFloorTexture = textureCache.get("wall00.png");
-        generatorOnTexture = textureCache.get("generator01.png");
-        exitButtonOnTexture = textureCache.get("exit01.png");
+        defaultFloorTexture = getTexture(textureManager, "wall00.png");
+        generatorOnTexture = getTexture(textureManager, "generator01.png");
+        exitButtonOnTexture = getTexture(textureManager, "exit01.png");
 
         player = new Player(this);
         if (oldPlayer != null) {
@@ -93,6 +100,7 @@ public class Map {
             player.setDirection(Integer.parseInt(line.substring(4)));
 
             tiles = new Tile[width][height];
+            dirtyTiles = new BitSet(width * height);
 
             // Read tile types
             for (int y = 0; y < height; y++) {
@@ -161,27 +169,27 @@ public class Map {
                             break;
                         case 'b':
                             tile.type = Tile.TYPE_NOTHING;
-                            addEntity(new Key(this, textureCache.get("/sprites/key01.png"), x + 0.5f, y + 0.5f, 1));
+                            addEntity(new Key(this, getTexture(textureManager, "/sprites/key01.png"), x + 0.5f, y + 0.5f, 1));
                             break;
                         case 'c':
                             tile.type = Tile.TYPE_NOTHING;
-                            addEntity(new Key(this, textureCache.get("/sprites/key02.png"), x + 0.5f, y + 0.5f, 2));
+                            addEntity(new Key(this, getTexture(textureManager, "/sprites/key02.png"), x + 0.5f, y + 0.5f, 2));
                             break;
                         case 'd':
                             tile.type = Tile.TYPE_NOTHING;
-                            addEntity(new Key(this, textureCache.get("/sprites/key03.png"), x + 0.5f, y + 0.5f, 3));
+                            addEntity(new Key(this, getTexture(textureManager, "/sprites/key03.png"), x + 0.5f, y + 0.5f, 3));
                             break;
                         case 'h':
                             tile.type = Tile.TYPE_NOTHING;
-                            addEntity(new MedKit(this, textureCache.get("/sprites/medkit.png"), x + 0.5f, y + 0.5f, false));
+                            addEntity(new MedKit(this, getTexture(textureManager, "/sprites/medkit.png"), x + 0.5f, y + 0.5f, false));
                             break;
                         case 'H':
                             tile.type = Tile.TYPE_NOTHING;
-                            addEntity(new MedKit(this, textureCache.get("/sprites/nuclear.png"), x + 0.5f, y + 0.5f, true));
+                            addEntity(new MedKit(this, getTexture(textureManager, "/sprites/nuclear.png"), x + 0.5f, y + 0.5f, true));
                             break;
                         case 'm':
                             tile.type = Tile.TYPE_NOTHING;
-                            addEntity(new Ammo(this, textureCache.get("/sprites/ammo.png"), x + 0.5f, y + 0.5f));
+                            addEntity(new Ammo(this, getTexture(textureManager, "/sprites/ammo.png"), x + 0.5f, y + 0.5f));
                             break;
                         default:
                             tile.type = Tile.TYPE_NOTHING;
@@ -203,15 +211,33 @@ public class Map {
                     Tile tile = tiles[x][y];
 
                     if (tile.type == Tile.TYPE_GENERATOR) {
-                        tile.setTexture(textureCache.get("generator00.png"));
+                        tile.setTexture(getTexture(textureManager, "generator00.png"));
                     } else if (tile.type == Tile.TYPE_EXIT) {
-                        tile.setTexture(textureCache.get("exit00.png"));
+                        tile.setTexture(getTexture(textureManager, "exit00.png"));
                     } else {
                         int textureIndex = Integer.parseInt(line.substring(x, x + 1), 16);
-                        if (textureIndex < 10) {
-                            tile.setTexture(textureCache.get("wall0" + textureIndex + ".png"));
-                        } else {
-                            tile.setTexture(textureCache.get("wall" + textureIndex + ".png"));
+                        tile.setTexture(getWallTexture(textureManager, textureIndex));
+                    }
+                }
+            }
+
+            // Read ceiling textures (optional). A space or '.' is open to the sky.
+            r.readLine();
+            line = r.readLine();
+            if (line != null && line.length() > 0) {
+                for (int y = 0; y < height; y++) {
+                    if (y > 0) {
+                        line = r.readLine();
+                    }
+                    if (line == null || line.length() != width) {
+                        throw new IOException("Wrong width: " + line);
+                    }
+                    for (int x = 0; x < width; x++) {
+                        char ch = line.charAt(x);
+                        if (ch != ' ' && ch != '.') {
+                            int textureIndex = Integer.parseInt(line.substring(x, x + 1), 16);
+                            tiles[x][y].setCeilingTexture(getWallTexture(textureManager, textureIndex));
+                            hasCeilings = true;
                         }
                     }
                 }
@@ -219,12 +245,58 @@ public class Map {
         } catch (NumberFormatException ex) {
             throw new IOException(ex);
         }
+
+        // The sky is visible if any open tile has no ceiling
+        skyVisible = false;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                Tile tile = tiles[x][y];
+                if (tile.getCeilingTexture() == null && tile.type != Tile.TYPE_WALL &&
+                        tile.type != Tile.TYPE_EXIT && tile.type != Tile.TYPE_GENERATOR) {
+                    skyVisible = true;
+                }
+            }
+        }
+
+        lightGrid = new LightGrid(this);
+    }
+
+    private SoftTexture getTexture(TextureManager textureManager, String name) {
+        textureNames.add(name);
+        return textureManager.get(name);
+    }
+
+    private SoftTexture getWallTexture(TextureManager textureManager, int textureIndex) {
+        if (textureIndex < 10) {
+            return getTexture(textureManager, "wall0" + textureIndex + ".png");
+        } else {
+            return getTexture(textureManager, "wall" + textureIndex + ".png");
+        }
     }
 
     public void setMessage(String message) {
         messageQueue.add(message);
     }
 
+    /**
+     * Gets the names of all textures this map references, including sprites.
+     */
+    public Set<String> getTextureNames() {
+        return textureNames;
+    }
+
+    public boolean hasCeilings() {
+        return hasCeilings;
+    }
+
+    /**
+     * Checks if the sky can be seen from anywhere in the map. If not, the background doesn't need
+     * to be drawn.
+     */
+    public boolean isSkyVisible() {
+        return skyVisible;
+    }
+
     public SoftTexture getDefaultFloorTexture() {
         return defaultFloorTexture;
     }
@@ -233,11 +305,17 @@ public class Map {
         this.defaultFloorTexture = defaultFloorTexture;
     }
 
+    public LightGrid getLightGrid() {
+        return lightGrid;
+    }
+
     public boolean isExitFound() {
         return exitFound;
     }
 
     public void tick() {
+        lightGrid.tick();
+
         // Handle regular actions
         Iterator<Action> i = actions.iterator();
         while (i.hasNext()) {
@@ -306,6 +384,10 @@ public class Map {
         }
     }
 
+    public List<Entity> getEntities() {
+        return entities;
+    }
+
     public Player getPlayer() {
         return player;
     }
@@ -334,6 +416,22 @@ public class Map {
         return numSecrets;
     }
 
+    /**
+     * Marks a tile as changed, so that views of the map (like the minimap) redraw it. Dirty tiles
+     * are moved to the next {@link MapSnapshot}.
+     */
+    public void markDirty(int tileX, int tileY) {
+        dirtyTiles.set(tileX + tileY * width);
+    }
+
+    /**
+     * Gets the tiles marked dirty, as indices (x + y * width). The caller should clear the set
+     * after handling it.
+     */
+    public BitSet getDirtyTiles() {
+        return dirtyTiles;
+    }
+
     public Tile getTileAt(Entity entity) {
         return getTileAt((int) entity.getX(), (int) entity.getY());
     }
@@ -414,6 +512,7 @@ public class Map {
             if (tile.state == 0) {
                 tile.state = 1;
                 tile.setTexture(exitButtonOnTexture);
+                markDirty(tileX, tileY);
                 App.getApp().getAudio("/sound/endlevel.wav").play();
                 exitFound = true;
             }
@@ -421,7 +520,9 @@ public class Map {
             if (tile.state == 0) {
                 tile.state = 1;
                 tile.setTexture(generatorOnTexture);
+                markDirty(tileX, tileY);
                 actions.add(new GeneratorAction(this, tileX, tileY));
+                lightGrid.addLight(tileX + 0.5f, tileY + 0.5f, 4, 96);
                 setElectricityOn(true);
                 setMessage("The power is now on");
             }
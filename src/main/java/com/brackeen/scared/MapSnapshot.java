@@ -0,0 +1,358 @@
+package com.brackeen.scared;
+
+import com.brackeen.scared.entity.Entity;
+import com.brackeen.scared.entity.Player;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A copy of what is drawn of a map at one simulation tick: the camera, the type, render state and
+ * textures of each tile, the location and texture of each entity, and the light levels. The
+ * simulation copies the map after each tick, and the renderer and minimap draw the copy, so the
+ * map can change on another thread while a frame is drawn.
+ * <p>
+ * Locations can be interpolated from the previous snapshot's (see
+ * {@link #setInterpolation(float)}), so that frames drawn between ticks show smooth motion.
+ * <p>
+ * Explored tiles aren't part of the simulation. They are marked by the renderer, and are shared by
+ * all snapshots of the same map (see {@link #isSameMap(MapSnapshot)}). Like the rest of the
+ * snapshot, they belong to the thread that draws the map.
+ */
+public class MapSnapshot {
+
+    // Entities that move further than this in one tick (in tiles) aren't interpolated
+    private static final float MAX_INTERPOLATION_DISTANCE = 1;
+
+    /**
+     * An entity as drawn: a copy of its location, size and texture. The location is interpolated
+     * between the entity's previous and current locations.
+     */
+    public static class Sprite extends Entity {
+
+        private Entity source;
+        private float fromX;
+        private float fromY;
+        private float toX;
+        private float toY;
+
+        private Sprite() {
+            super(0, 0, 0);
+        }
+
+        /**
+         * Gets the entity this sprite was copied from. The entity belongs to the simulation.
+         */
+        public Entity getSource() {
+            return source;
+        }
+
+        private void copyFrom(Entity entity, Sprite previous) {
+            source = entity;
+            toX = entity.getX();
+            toY = entity.getY();
+            if (previous != null &&
+                    Math.abs(toX - previous.toX) + Math.abs(toY - previous.toY) <= MAX_INTERPOLATION_DISTANCE) {
+                fromX = previous.toX;
+                fromY = previous.toY;
+            } else {
+                fromX = toX;
+                fromY = toY;
+            }
+            setRadius(entity.getRadius());
+            setLocation(toX, toY);
+            setZ(entity.getZ());
+            setDirection(entity.getDirection());
+            setTexture(entity.getTexture());
+            setTextureScale(entity.getTextureScale());
+            setDepthBias(entity.getDepthBias());
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final Tile[] tiles;
+    private final int[] lights;
+    private final boolean skyVisible;
+    private final boolean hasCeilings;
+    private SoftTexture defaultFloorTexture;
+    private float cameraX;
+    private float cameraY;
+    private float cameraZ;
+    private float cameraDirection;
+    private final float[] fromCamera = new float[4];
+    private final float[] toCamera = new float[4];
+    private float interpolation = 1;
+
+    // Sprites are reused from one copy to the next
+    private final List<Sprite> sprites = new ArrayList<>();
+    private final List<Sprite> spritePool = new ArrayList<>();
+
+    // Tiles the simulation marked dirty (see Map.markDirty) before this snapshot was copied
+    private final BitSet changedTiles = new BitSet();
+
+    // Shared by all snapshots of the map
+    private final BitSet exploredTiles;
+    private final BitSet dirtyTiles;
+
+    /**
+     * Creates a snapshot of a map.
+     */
+    public MapSnapshot(Map map) {
+        this(map, null, new BitSet(map.getWidth() * map.getHeight()), new BitSet(map.getWidth() * map.getHeight()));
+    }
+
+    /**
+     * Creates another snapshot of the map of an existing snapshot, sharing its explored tiles. The
+     * existing snapshot is the previous one (see {@link #copyFrom(Map, MapSnapshot)}).
+     */
+    public MapSnapshot(Map map, MapSnapshot sameMap) {
+        this(map, sameMap, sameMap.exploredTiles, sameMap.dirtyTiles);
+        if (map.getWidth() != sameMap.width || map.getHeight() != sameMap.height) {
+            throw new IllegalArgumentException("Not the same map");
+        }
+    }
+
+    private MapSnapshot(Map map, MapSnapshot previous, BitSet exploredTiles, BitSet dirtyTiles) {
+        this.width = map.getWidth();
+        this.height = map.getHeight();
+        this.exploredTiles = exploredTiles;
+        this.dirtyTiles = dirtyTiles;
+        tiles = new Tile[width * height];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new Tile();
+        }
+        lights = new int[width * height];
+        skyVisible = map.isSkyVisible();
+        hasCeilings = map.hasCeilings();
+        copyFrom(map, previous);
+    }
+
+    /**
+     * Copies the map, with the camera at the player. The map's dirty tiles are moved to this
+     * snapshot's changed tiles (see {@link #markChangedTilesDirty()}). This is called by the
+     * thread that changes the map, while no other thread uses this snapshot.
+     *
+     * @param previous The snapshot of the previous tick, to interpolate from, or null. Only the
+     * locations it was copied with are read, so it may be drawn on another thread meanwhile.
+     */
+    public void copyFrom(Map map, MapSnapshot previous) {
+        if (previous == this || !isSameMap(previous)) {
+            previous = null;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                Tile tile = tiles[x + y * width];
+                tile.removeAllEntities();
+                tile.copyFrom(map.getTileAt(x, y));
+            }
+        }
+        map.getLightGrid().getLights(lights);
+        defaultFloorTexture = map.getDefaultFloorTexture();
+
+        Player player = map.getPlayer();
+        toCamera[0] = player.getX();
+        toCamera[1] = player.getY();
+        toCamera[2] = player.getZ();
+        toCamera[3] = player.getDirection();
+        if (previous != null && Math.abs(toCamera[0] - previous.toCamera[0]) +
+                Math.abs(toCamera[1] - previous.toCamera[1]) <= MAX_INTERPOLATION_DISTANCE) {
+            System.arraycopy(previous.toCamera, 0, fromCamera, 0, fromCamera.length);
+        } else {
+            System.arraycopy(toCamera, 0, fromCamera, 0, fromCamera.length);
+        }
+
+        // Entities keep their order in the map, so the previous sprites are matched in one pass
+        List<Sprite> previousSprites = previous != null ? previous.sprites : null;
+        int previousIndex = 0;
+        int oldCount = sprites.size();
+        sprites.clear();
+        List<Entity> entities = map.getEntities();
+        for (int i = 0; i < entities.size(); i++) {
+            Entity entity = entities.get(i);
+            if (entity instanceof Player || entity.isDeleted() || entity.getTile() == null) {
+                continue;
+            }
+            Tile tile = getTileAt((int) entity.getX(), (int) entity.getY());
+            if (tile != null) {
+                Sprite sprite;
+                if (sprites.size() < spritePool.size()) {
+                    sprite = spritePool.get(sprites.size());
+                } else {
+                    sprite = new Sprite();
+                    spritePool.add(sprite);
+                }
+                Sprite previousSprite = null;
+                if (previousSprites != null) {
+                    for (int j = previousIndex; j < previousSprites.size(); j++) {
+                        if (previousSprites.get(j).source == entity) {
+                            previousSprite = previousSprites.get(j);
+                            previousIndex = j + 1;
+                            break;
+                        }
+                    }
+                }
+                sprite.copyFrom(entity, previousSprite);
+                tile.addEntity(sprite);
+                sprites.add(sprite);
+            }
+        }
+        for (int i = sprites.size(); i < oldCount; i++) {
+            spritePool.get(i).source = null;
+        }
+
+        interpolation = 1;
+        cameraX = toCamera[0];
+        cameraY = toCamera[1];
+        cameraZ = toCamera[2];
+        cameraDirection = toCamera[3];
+
+        changedTiles.clear();
+        changedTiles.or(map.getDirtyTiles());
+        map.getDirtyTiles().clear();
+    }
+
+    public float getInterpolation() {
+        return interpolation;
+    }
+
+    /**
+     * Moves the camera and sprites between their locations in the previous snapshot (0) and the
+     * locations they were copied with (1). Sprites stay in the tiles of their copied locations.
+     * This is called by the thread that draws the snapshot.
+     */
+    public void setInterpolation(float interpolation) {
+        interpolation = Math.max(0, Math.min(1, interpolation));
+        if (this.interpolation == interpolation) {
+            return;
+        }
+        this.interpolation = interpolation;
+        cameraX = lerp(fromCamera[0], toCamera[0], interpolation);
+        cameraY = lerp(fromCamera[1], toCamera[1], interpolation);
+        cameraZ = lerp(fromCamera[2], toCamera[2], interpolation);
+        float turn = (toCamera[3] - fromCamera[3]) % 360;
+        if (turn > 180) {
+            turn -= 360;
+        } else if (turn < -180) {
+            turn += 360;
+        }
+        cameraDirection = fromCamera[3] + turn * interpolation;
+        for (int i = 0; i < sprites.size(); i++) {
+            Sprite sprite = sprites.get(i);
+            sprite.setLocation(lerp(sprite.fromX, sprite.toX, interpolation),
+                    lerp(sprite.fromY, sprite.toY, interpolation));
+        }
+    }
+
+    private static float lerp(float from, float to, float t) {
+        return from + (to - from) * t;
+    }
+
+    /**
+     * Checks if this snapshot is of the same map as another snapshot, so that they share explored
+     * tiles.
+     */
+    public boolean isSameMap(MapSnapshot snapshot) {
+        return snapshot != null && snapshot.exploredTiles == exploredTiles;
+    }
+
+    /**
+     * Adds the changed tiles of an older snapshot of the same map. This is used when the older
+     * snapshot is replaced before it is drawn, so that its changes aren't lost.
+     */
+    public void addChangedTiles(MapSnapshot olderSnapshot) {
+        changedTiles.or(olderSnapshot.changedTiles);
+    }
+
+    /**
+     * Marks the tiles changed by the simulation before this snapshot as dirty. This should be
+     * called once, when this snapshot replaces the previous one.
+     */
+    public void markChangedTilesDirty() {
+        dirtyTiles.or(changedTiles);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Tile getTileAt(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return null;
+        }
+        return tiles[x + y * width];
+    }
+
+    /**
+     * Gets the light level of a tile, as returned by {@link LightGrid#getLight(int, int)}.
+     */
+    public int getLight(int tileX, int tileY) {
+        if (tileX < 0 || tileY < 0 || tileX >= width || tileY >= height) {
+            return LightGrid.NORMAL_LIGHT;
+        }
+        return lights[tileX + tileY * width];
+    }
+
+    /**
+     * Gets the sprites of all entities, except the player.
+     */
+    public List<Sprite> getEntities() {
+        return sprites;
+    }
+
+    public boolean isSkyVisible() {
+        return skyVisible;
+    }
+
+    public boolean hasCeilings() {
+        return hasCeilings;
+    }
+
+    public SoftTexture getDefaultFloorTexture() {
+        return defaultFloorTexture;
+    }
+
+    public float getCameraX() {
+        return cameraX;
+    }
+
+    public float getCameraY() {
+        return cameraY;
+    }
+
+    public float getCameraZ() {
+        return cameraZ;
+    }
+
+    public float getCameraDirection() {
+        return cameraDirection;
+    }
+
+    public boolean isExplored(int tileX, int tileY) {
+        return exploredTiles.get(tileX + tileY * width);
+    }
+
+    /**
+     * Marks a tile as seen by the player. Newly explored tiles are marked dirty.
+     */
+    public void markExplored(int tileX, int tileY) {
+        int index = tileX + tileY * width;
+        if (!exploredTiles.get(index)) {
+            exploredTiles.set(index);
+            dirtyTiles.set(index);
+        }
+    }
+
+    /**
+     * Gets the tiles that views of the map (like the minimap) should redraw, as indices
+     * (x + y * width). The caller should clear the set after handling it.
+     */
+    public BitSet getDirtyTiles() {
+        return dirtyTiles;
+    }
+}
@@ -0,0 +1,166 @@
+package com.brackeen.scared;
+
+import com.brackeen.app.view.View;
+import com.brackeen.scared.entity.Ammo;
+import com.brackeen.scared.entity.Enemy;
+import com.brackeen.scared.entity.Entity;
+import com.brackeen.scared.entity.Key;
+import com.brackeen.scared.entity.MedKit;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An automap of explored tiles, drawn from a {@link MapSnapshot}. The tiles are cached in a
+ * texture, and only tiles marked dirty in the map are redrawn. Entity markers are drawn on top
+ * every frame.
+ */
+public class Minimap extends View {
+
+    private static final int TILE_SIZE = 4;
+
+    private static final int COLOR_FLOOR = 0x80202020;
+    private static final int COLOR_WALL = 0xc0909090;
+    private static final int COLOR_WINDOW = 0xc06080c0;
+    private static final int COLOR_DOOR_OPEN = 0xc0505050;
+    private static final int COLOR_EXIT = 0xc000c000;
+    private static final int COLOR_GENERATOR = 0xc0c08000;
+    private static final int[] COLOR_DOORS = {0xc0c0c0c0, 0xc0c04040, 0xc040c040, 0xc04040c0};
+
+    private static final Color COLOR_PLAYER = Color.WHITE;
+    private static final Color COLOR_ENEMY = new Color(0xff3030);
+    private static final Color COLOR_ITEM = new Color(0xffe040);
+
+    private MapSnapshot map;
+    private BufferedImage image;
+    private SoftTexture texture;
+
+    public MapSnapshot getMap() {
+        return map;
+    }
+
+    /**
+     * Sets the snapshot of the map to draw. Tiles changed since the previous snapshot of the same
+     * map are redrawn; for a different map, all explored tiles are drawn.
+     */
+    public void setMap(MapSnapshot map) {
+        MapSnapshot oldMap = this.map;
+        this.map = map;
+        if (map != null && map.isSameMap(oldMap)) {
+            map.markChangedTilesDirty();
+        } else if (map == null) {
+            image = null;
+            texture = null;
+            setSize(0, 0);
+        } else {
+            int w = map.getWidth();
+            int h = map.getHeight();
+            image = new BufferedImage(w * TILE_SIZE, h * TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            texture = new SoftTexture(image); // Shares the image's pixels
+            setSize(image.getWidth(), image.getHeight());
+
+            // Draw explored tiles (if any) in full, once
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    if (map.isExplored(x, y)) {
+                        drawTile(x, y);
+                    }
+                }
+            }
+            map.getDirtyTiles().clear();
+        }
+        setDirty();
+    }
+
+    private void updateDirtyTiles() {
+        BitSet dirtyTiles = map.getDirtyTiles();
+        int w = map.getWidth();
+        for (int i = dirtyTiles.nextSetBit(0); i >= 0; i = dirtyTiles.nextSetBit(i + 1)) {
+            int x = i % w;
+            int y = i / w;
+            if (map.isExplored(x, y)) {
+                drawTile(x, y);
+            }
+        }
+        dirtyTiles.clear();
+    }
+
+    private void drawTile(int tileX, int tileY) {
+        Tile tile = map.getTileAt(tileX, tileY);
+        int color;
+        switch (tile.type) {
+            case Tile.TYPE_WALL:
+            case Tile.TYPE_MOVABLE_WALL:
+                color = COLOR_WALL;
+                break;
+            case Tile.TYPE_DOOR:
+                color = tile.isSolid() ? COLOR_DOORS[tile.getDoorType() % COLOR_DOORS.length] : COLOR_DOOR_OPEN;
+                break;
+            case Tile.TYPE_WINDOW:
+                color = COLOR_WINDOW;
+                break;
+            case Tile.TYPE_EXIT:
+                color = COLOR_EXIT;
+                break;
+            case Tile.TYPE_GENERATOR:
+                color = COLOR_GENERATOR;
+                break;
+            default:
+                color = COLOR_FLOOR;
+                break;
+        }
+
+        int[] data = texture.getData();
+        int stride = texture.getWidth();
+        int offset = tileX * TILE_SIZE + tileY * TILE_SIZE * stride;
+        for (int i = 0; i < TILE_SIZE; i++) {
+            Arrays.fill(data, offset, offset + TILE_SIZE, color);
+            offset += stride;
+        }
+    }
+
+    @Override
+    public void onDraw(Graphics2D g) {
+        if (map == null) {
+            return;
+        }
+
+        updateDirtyTiles();
+        g.drawImage(image, null, null);
+
+        // Markers
+        List<MapSnapshot.Sprite> entities = map.getEntities();
+        for (int i = 0; i < entities.size(); i++) {
+            MapSnapshot.Sprite sprite = entities.get(i);
+            Entity entity = sprite.getSource();
+            Color color;
+            if (entity instanceof Enemy && sprite.getRadius() > 0) {
+                color = COLOR_ENEMY;
+            } else if (entity instanceof Key || entity instanceof MedKit || entity instanceof Ammo) {
+                color = COLOR_ITEM;
+            } else {
+                continue;
+            }
+            int tileX = (int) sprite.getX();
+            int tileY = (int) sprite.getY();
+            if (map.isExplored(tileX, tileY)) {
+                g.setColor(color);
+                g.fillRect(Math.round(sprite.getX() * TILE_SIZE) - 1, Math.round(sprite.getY() * TILE_SIZE) - 1, 2, 2);
+            }
+        }
+
+        // The player is at the camera
+        float px = map.getCameraX() * TILE_SIZE;
+        float py = map.getCameraY() * TILE_SIZE;
+        double direction = Math.toRadians(map.getCameraDirection());
+        g.setColor(COLOR_PLAYER);
+        g.fillRect(Math.round(px) - 1, Math.round(py) - 1, 2, 2);
+        g.drawLine(Math.round(px), Math.round(py),
+                (int) Math.round(px + Math.cos(direction) * TILE_SIZE),
+                (int) Math.round(py - Math.sin(direction) * TILE_SIZE));
+    }
+}
@@ -0,0 +1,240 @@
+package com.brackeen.scared;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A 256-color palette for palette-indexed rendering. Index 0 is transparent.
+ * Colors are chosen from the source textures using median cut.
+ */
+public class Palette {
+
+    public static final int NUM_COLORS = 256;
+    public static final int TRANSPARENT_INDEX = 0;
+
+    // Colors are quantized to 5 bits per channel when building the palette and the inverse table.
+    private static final int BITS = 5;
+    private static final int NUM_BUCKETS = 1 << (BITS * 3);
+
+    // Shading levels to include when choosing colors, so that dark colors exist for shaded surfaces.
+    private static final float[] SOURCE_BRIGHTNESS = {1.0f, 0.67f, 0.5f, 0.33f};
+
+    private static int toBucket(int r, int g, int b) {
+        return ((r >> (8 - BITS)) << (BITS * 2)) | ((g >> (8 - BITS)) << BITS) | (b >> (8 - BITS));
+    }
+
+    private static class Box {
+        final int[] min = new int[3];
+        final int[] max = new int[3];
+        final List<Integer> buckets = new ArrayList<>();
+        long count;
+
+        int getLongestAxis() {
+            int axis = 0;
+            for (int i = 1; i < 3; i++) {
+                if (max[i] - min[i] > max[axis] - min[axis]) {
+                    axis = i;
+                }
+            }
+            return axis;
+        }
+
+        long getPriority() {
+            int axis = getLongestAxis();
+            return count * (max[axis] - min[axis]);
+        }
+
+        void add(int bucket, int[] histogram) {
+            buckets.add(bucket);
+            count += histogram[bucket];
+            for (int i = 0; i < 3; i++) {
+                int c = getComponent(bucket, i);
+                if (buckets.size() == 1 || c < min[i]) {
+                    min[i] = c;
+                }
+                if (buckets.size() == 1 || c > max[i]) {
+                    max[i] = c;
+                }
+            }
+        }
+
+        static int getComponent(int bucket, int axis) {
+            return (bucket >> (BITS * (2 - axis))) & ((1 << BITS) - 1);
+        }
+    }
+
+    private final int[] colors = new int[NUM_COLORS];
+    private final byte[] inverseTable = new byte[NUM_BUCKETS];
+
+    /**
+     * Creates a palette from the pixels of the specified textures, including the half-size
+     * textures created so far. Lazy half-size textures aren't created.
+     */
+    public Palette(Collection<SoftTexture> textures) {
+        int[] histogram = new int[NUM_BUCKETS];
+        long[] sumR = new long[NUM_BUCKETS];
+        long[] sumG = new long[NUM_BUCKETS];
+        long[] sumB = new long[NUM_BUCKETS];
+        for (SoftTexture texture : textures) {
+            while (texture != null) {
+                int numPixels = texture.getWidth() * texture.getHeight();
+                for (int i = 0; i < numPixels; i++) {
+                    int color = texture.getPixel(i);
+                    if (isOpaque(color)) {
+                        for (float brightness : SOURCE_BRIGHTNESS) {
+                            int r = (int) (((color >> 16) & 0xff) * brightness);
+                            int g = (int) (((color >> 8) & 0xff) * brightness);
+                            int b = (int) ((color & 0xff) * brightness);
+                            int bucket = toBucket(r, g, b);
+                            histogram[bucket]++;
+                            sumR[bucket] += r;
+                            sumG[bucket] += g;
+                            sumB[bucket] += b;
+                        }
+                    }
+                }
+                texture = texture.getCreatedHalfSizeTexture();
+            }
+        }
+
+        // Median cut
+        List<Box> boxes = new ArrayList<>();
+        Box firstBox = new Box();
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            if (histogram[bucket] > 0) {
+                firstBox.add(bucket, histogram);
+            }
+        }
+        if (firstBox.count > 0) {
+            boxes.add(firstBox);
+        }
+        while (boxes.size() < NUM_COLORS - 1) {
+            Box box = null;
+            for (Box b : boxes) {
+                if (b.buckets.size() > 1 && (box == null || b.getPriority() > box.getPriority())) {
+                    box = b;
+                }
+            }
+            if (box == null) {
+                break;
+            }
+            boxes.remove(box);
+            final int axis = box.getLongestAxis();
+            int[] axisCounts = new int[1 << BITS];
+            for (int bucket : box.buckets) {
+                axisCounts[Box.getComponent(bucket, axis)] += histogram[bucket];
+            }
+            int median = box.min[axis];
+            long count = 0;
+            while (median < box.max[axis] - 1 && count + axisCounts[median] < box.count / 2) {
+                count += axisCounts[median];
+                median++;
+            }
+            Box box1 = new Box();
+            Box box2 = new Box();
+            for (int bucket : box.buckets) {
+                if (Box.getComponent(bucket, axis) <= median) {
+                    box1.add(bucket, histogram);
+                } else {
+                    box2.add(bucket, histogram);
+                }
+            }
+            boxes.add(box1);
+            boxes.add(box2);
+        }
+
+        // Average color of each box
+        colors[TRANSPARENT_INDEX] = 0;
+        for (int i = 0; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            long r = 0;
+            long g = 0;
+            long b = 0;
+            for (int bucket : box.buckets) {
+                r += sumR[bucket];
+                g += sumG[bucket];
+                b += sumB[bucket];
+            }
+            colors[i + 1] = 0xff000000 | (int) ((r / box.count) << 16) | (int) ((g / box.count) << 8) | (int) (b / box.count);
+        }
+        for (int i = boxes.size() + 1; i < NUM_COLORS; i++) {
+            colors[i] = 0xff000000;
+        }
+
+        // Inverse table: nearest palette index for each quantized color
+        int half = 1 << (7 - BITS);
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            int r = (Box.getComponent(bucket, 0) << (8 - BITS)) + half;
+            int g = (Box.getComponent(bucket, 1) << (8 - BITS)) + half;
+            int b = (Box.getComponent(bucket, 2) << (8 - BITS)) + half;
+            inverseTable[bucket] = (byte) findNearestIndex(r, g, b);
+        }
+    }
+
+    private static boolean isOpaque(int color) {
+        return (color >>> 24) >= 0x80;
+    }
+
+    private int findNearestIndex(int r, int g, int b) {
+        int nearestIndex = 1;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (int i = 1; i < NUM_COLORS; i++) {
+            int color = colors[i];
+            int dr = ((color >> 16) & 0xff) - r;
+            int dg = ((color >> 8) & 0xff) - g;
+            int db = (color & 0xff) - b;
+            int distance = dr * dr * 3 + dg * dg * 4 + db * db * 2;
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearestIndex = i;
+            }
+        }
+        return nearestIndex;
+    }
+
+    /**
+     * Gets the ARGB colors of this palette. Do not modify the returned array.
+     */
+    public int[] getColors() {
+        return colors;
+    }
+
+    /**
+     * Gets the palette index nearest to the specified ARGB color. Colors with an alpha less than
+     * 50% are mapped to {@link #TRANSPARENT_INDEX}.
+     */
+    public int getIndex(int color) {
+        if (!isOpaque(color)) {
+            return TRANSPARENT_INDEX;
+        }
+        return inverseTable[toBucket((color >> 16) & 0xff, (color >> 8) & 0xff, color & 0xff)] & 0xff;
+    }
+
+    /**
+     * Converts ARGB pixels to palette indices.
+     */
+    public byte[] toIndexed(int[] data) {
+        byte[] indexedData = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            indexedData[i] = (byte) getIndex(data[i]);
+        }
+        return indexedData;
+    }
+
+    /**
+     * Creates a colormap that maps each palette index to the index of the same color at the
+     * specified brightness. The transparent index maps to itself.
+     */
+    public byte[] createColormap(float brightness) {
+        byte[] colormap = new byte[NUM_COLORS];
+        for (int i = 1; i < NUM_COLORS; i++) {
+            int color = colors[i];
+            int r = Math.min(255, (int) (((color >> 16) & 0xff) * brightness));
+            int g = Math.min(255, (int) (((color >> 8) & 0xff) * brightness));
+            int b = Math.min(255, (int) ((color & 0xff) * brightness));
+            colormap[i] = (byte) (brightness == 1 ? i : getIndex(0xff000000 | (r << 16) | (g << 8) | b));
+        }
+        return colormap;
+    }
+}
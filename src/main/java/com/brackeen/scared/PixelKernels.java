@@ -0,0 +1,139 @@
+package com.brackeen.scared;
+
+/**
+ * Per-pixel color operations on ARGB ints. By default, channels are processed two at a time in
+ * one int (red and blue in the 0x00ff00ff lanes, alpha and green in the 0xff00ff00 lanes), which
+ * halves the multiplies and shifts compared to unpacking each channel. The packed and scalar
+ * versions produce identical results. Set the system property "scared.scalarPixels" to true to use
+ * the scalar versions.
+ */
+public final class PixelKernels {
+
+    public static final boolean PACKED = !Boolean.getBoolean("scared.scalarPixels");
+
+    private static final int MASK_RB = 0x00ff00ff;
+    private static final int MASK_G = 0x0000ff00;
+
+    private PixelKernels() {
+    }
+
+    /**
+     * Multiplies the RGB channels of a color by shade/256, clamped to 255. The result is opaque.
+     */
+    public static int shade(int color, int shade) {
+        // For shade > 256 a lane can overflow into its neighbor, so use the scalar version
+        if (PACKED && shade <= 256) {
+            int rb = (((color & MASK_RB) * shade) >> 8) & MASK_RB;
+            int g = (((color & MASK_G) * shade) >> 8) & MASK_G;
+            return 0xff000000 | rb | g;
+        } else {
+            return shadeScalar(color, shade);
+        }
+    }
+
+    static int shadeScalar(int color, int shade) {
+        int r = Math.min(255, (((color >> 16) & 0xff) * shade) >> 8);
+        int g = Math.min(255, (((color >> 8) & 0xff) * shade) >> 8);
+        int b = Math.min(255, ((color & 0xff) * shade) >> 8);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Blends the RGB channels of src over dst: (src * alpha + dst * (255 - alpha)) / 256. The
+     * result is opaque.
+     */
+    public static int blend(int src, int dst, int alpha) {
+        if (PACKED) {
+            int oneMinusAlpha = 0xff - alpha;
+            int rb = (((src & MASK_RB) * alpha + (dst & MASK_RB) * oneMinusAlpha) >> 8) & MASK_RB;
+            int g = (((src & MASK_G) * alpha + (dst & MASK_G) * oneMinusAlpha) >> 8) & MASK_G;
+            return 0xff000000 | rb | g;
+        } else {
+            return blendScalar(src, dst, alpha);
+        }
+    }
+
+    static int blendScalar(int src, int dst, int alpha) {
+        int oneMinusAlpha = 0xff - alpha;
+        int r = (alpha * ((src >> 16) & 0xff) + ((dst >> 16) & 0xff) * oneMinusAlpha) >> 8;
+        int g = (alpha * ((src >> 8) & 0xff) + ((dst >> 8) & 0xff) * oneMinusAlpha) >> 8;
+        int b = (alpha * (src & 0xff) + (dst & 0xff) * oneMinusAlpha) >> 8;
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Averages four ARGB colors, including alpha (2x2 box filter).
+     */
+    public static int average(int c1, int c2, int c3, int c4) {
+        if (PACKED) {
+            int rb = (((c1 & MASK_RB) + (c2 & MASK_RB) + (c3 & MASK_RB) + (c4 & MASK_RB)) >> 2) & MASK_RB;
+            int ag = ((((c1 >>> 8) & MASK_RB) + ((c2 >>> 8) & MASK_RB) + ((c3 >>> 8) & MASK_RB) +
+                    ((c4 >>> 8) & MASK_RB)) << 6) & ~MASK_RB;
+            return ag | rb;
+        } else {
+            return averageScalar(c1, c2, c3, c4);
+        }
+    }
+
+    static int averageScalar(int c1, int c2, int c3, int c4) {
+        int a = ((c1 >>> 24) + (c2 >>> 24) + (c3 >>> 24) + (c4 >>> 24)) >> 2;
+        int r = (((c1 >> 16) & 0xff) + ((c2 >> 16) & 0xff) + ((c3 >> 16) & 0xff) + ((c4 >> 16) & 0xff)) >> 2;
+        int g = (((c1 >> 8) & 0xff) + ((c2 >> 8) & 0xff) + ((c3 >> 8) & 0xff) + ((c4 >> 8) & 0xff)) >> 2;
+        int b = ((c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff) + (c4 & 0xff)) >> 2;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Averages four ARGB colors, including alpha, with the first color weighted 5/8 and the others
+     * 1/8 each.
+     */
+    public static int weightedAverage(int c1, int c2, int c3, int c4) {
+        if (PACKED) {
+            int rb = (((c1 & MASK_RB) * 5 + (c2 & MASK_RB) + (c3 & MASK_RB) + (c4 & MASK_RB)) >> 3) & MASK_RB;
+            int ag = ((((c1 >>> 8) & MASK_RB) * 5 + ((c2 >>> 8) & MASK_RB) + ((c3 >>> 8) & MASK_RB) +
+                    ((c4 >>> 8) & MASK_RB)) << 5) & ~MASK_RB;
+            return ag | rb;
+        } else {
+            return weightedAverageScalar(c1, c2, c3, c4);
+        }
+    }
+
+    static int weightedAverageScalar(int c1, int c2, int c3, int c4) {
+        int a = ((c1 >>> 24) * 5 + (c2 >>> 24) + (c3 >>> 24) + (c4 >>> 24)) >> 3;
+        int r = (((c1 >> 16) & 0xff) * 5 + ((c2 >> 16) & 0xff) + ((c3 >> 16) & 0xff) + ((c4 >> 16) & 0xff)) >> 3;
+        int g = (((c1 >> 8) & 0xff) * 5 + ((c2 >> 8) & 0xff) + ((c3 >> 8) & 0xff) + ((c4 >> 8) & 0xff)) >> 3;
+        int b = ((c1 & 0xff) * 5 + (c2 & 0xff) + (c3 & 0xff) + (c4 & 0xff)) >> 3;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Averages four ARGB colors, with each color's RGB weighted by its alpha, so that transparent
+     * pixels don't darken or discolor the edges of sprites. Alpha is the plain average.
+     */
+    public static int alphaWeightedAverage(int c1, int c2, int c3, int c4) {
+        int a1 = c1 >>> 24;
+        int a2 = c2 >>> 24;
+        int a3 = c3 >>> 24;
+        int a4 = c4 >>> 24;
+        int totalAlpha = a1 + a2 + a3 + a4;
+        if (totalAlpha == 0) {
+            return 0;
+        }
+        int r = (((c1 >> 16) & 0xff) * a1 + ((c2 >> 16) & 0xff) * a2 + ((c3 >> 16) & 0xff) * a3 +
+                ((c4 >> 16) & 0xff) * a4) / totalAlpha;
+        int g = (((c1 >> 8) & 0xff) * a1 + ((c2 >> 8) & 0xff) * a2 + ((c3 >> 8) & 0xff) * a3 +
+                ((c4 >> 8) & 0xff) * a4) / totalAlpha;
+        int b = ((c1 & 0xff) * a1 + (c2 & 0xff) * a2 + (c3 & 0xff) * a3 + (c4 & 0xff) * a4) / totalAlpha;
+        return ((totalAlpha >> 2) << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Converts palette indices to ARGB colors.
+     */
+    public static void convertIndexed(byte[] src, int[] dst, int[] colors) {
+        int length = Math.min(src.length, dst.length);
+        for (int i = 0; i < length; i++) {
+            dst[i] = colors[src[i] & 0xff];
+        }
+    }
+}
@@ -6,6 +6,10 @@ public class Settings {
 
     public static final String AUTO_PIXEL_SCALE = "autoPixelScale";
     public static final String DEPTH_SHADING = "depthShading";
+    public static final String LIGHTING = "lighting";
+    public static final String OFF_HEAP_TEXTURES = "offHeapTextures";
+    public static final String PALETTE_MODE = "paletteMode";
+    public static final String TEXTURE_BUDGET = "textureBudget";
     public static final String VOLUME = "volume";
 
     public static Preferences getPrefs() {
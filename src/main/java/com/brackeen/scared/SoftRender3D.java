@@ -3,16 +3,16 @@ package com.brackeen.scared;
 import com.brackeen.app.App;
 import com.brackeen.app.view.View;
 import com.brackeen.scared.entity.Entity;
-import com.brackeen.scared.entity.Player;
 
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.Transparency;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -21,6 +21,13 @@ import java.util.List;
  */
 public class SoftRender3D extends View {
 
+    public enum DebugOverlay {
+        NONE,
+        OVERDRAW,
+        MIP,
+        STEPS,
+    }
+
     // Angle. Instead of 0..360, it is 0..65536.
 
     private static final int NUM_DEGREES = 0x10000;
@@ -34,11 +41,45 @@ public class SoftRender3D extends View {
     private static final int DEPTH_SCALE = 48;
     private static final int DEPTH_MAX = 768;
 
+    // Shade is a brightness multiplier, where NORMAL_SHADE is unchanged. It combines depth shading
+    // and the light level.
+    private static final int NORMAL_SHADE = 256;
+    private static final int MAX_SHADE = 511;
+    private static final int SHADE_COLORMAP_BITS = 3;
+
     private static final int MIN_FOV = 30;
     private static final int MAX_FOV = 120;
 
     private static final boolean RENDER_TEST = false;
 
+    private static final int DEBUG_MAX_RAY_STEPS = 64;
+    private static final int[] DEBUG_HEAT_COLORS = createHeatColors();
+
+    /**
+     * Creates a blue-cyan-green-yellow-red gradient with 256 entries.
+     */
+    private static int[] createHeatColors() {
+        final int[][] stops = {
+                {0, 0, 255},
+                {0, 255, 255},
+                {0, 255, 0},
+                {255, 255, 0},
+                {255, 0, 0},
+        };
+        int[] colors = new int[256];
+        for (int i = 0; i < colors.length; i++) {
+            int segment = Math.min(stops.length - 2, i * (stops.length - 1) / colors.length);
+            int t = i * (stops.length - 1) - segment * colors.length;
+            int[] c1 = stops[segment];
+            int[] c2 = stops[segment + 1];
+            int r = c1[0] + (c2[0] - c1[0]) * t / colors.length;
+            int g = c1[1] + (c2[1] - c1[1]) * t / colors.length;
+            int b = c1[2] + (c2[2] - c1[2]) * t / colors.length;
+            colors[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+        return colors;
+    }
+
     private static int degreesToAngle(float degrees) {
         return Math.round(degrees * NUM_DEGREES / 360) & NUM_DEGREES_MASK;
     }
@@ -112,16 +153,53 @@ public class SoftRender3D extends View {
 
     // Ray casting 
 
+    // Trig tables, shared by all renderers. Do not modify.
+    private static final int[] f_cosTable = new int[NUM_DEGREES];
+    private static final int[] f_sinTable = new int[NUM_DEGREES];
+    private static final int[] f_tanTable = new int[NUM_DEGREES];
+    private static final int[] f_cotTable = new int[NUM_DEGREES];
+
+    static {
+        for (int i = 0; i < NUM_DEGREES; i++) {
+            f_cosTable[i] = toFixedPoint(Math.cos(angleToRadians(i)));
+            f_sinTable[i] = toFixedPoint(Math.sin(angleToRadians(i)));
+            f_tanTable[i] = toFixedPoint(Math.tan(angleToRadians(i)));
+            f_cotTable[i] = toFixedPoint(1 / Math.tan(angleToRadians(i)));
+        }
+    }
+
+    private static class VisibleEntity implements Comparable<VisibleEntity> {
+        MapSnapshot.Sprite entity;
+        float distance;
+
+        // Sort back-to-front
+        @Override
+        public int compareTo(VisibleEntity t) {
+            if (distance < t.distance) {
+                return 1;
+            } else if (distance > t.distance) {
+                return -1;
+            }
+            return 0;
+        }
+    }
+
     private static class Ray {
         int f_dist;
         int sliver;
         int floorDrawY;
+        int ceilingDrawY;
+        int light;
+        int steps;
         SoftTexture texture;
 
         public void reset() {
             f_dist = Integer.MAX_VALUE;
             sliver = 0;
             floorDrawY = 0;
+            ceilingDrawY = Integer.MAX_VALUE;
+            light = LightGrid.NORMAL_LIGHT;
+            steps = 0;
             texture = null;
         }
     }
@@ -132,9 +210,30 @@ public class SoftRender3D extends View {
     private SoftTexture dstBuffer;
     private BufferedImage bufferedImage;
 
-    private Map map;
+    // Views drawn on top of the rendered view, into dstBuffer
+    private View overlayView;
+    private final SoftViewCompositor overlayCompositor = new SoftViewCompositor();
+
+    // Palette mode. Everything is drawn to indexedBuffer, which is converted to dstBuffer when done.
+    // Shading uses a colormap for every 2^SHADE_COLORMAP_BITS shade values.
+    private final Palette palette;
+    private final byte[][] colormaps;
+    private SoftTexture indexedBuffer;
+
+    private MapSnapshot map;
     private SoftTexture background;
     private final List<Tile> visibleFloors = new ArrayList<>();
+    private boolean markExploredTiles = true;
+
+    // Tile visibility, owned by this renderer so that several renderers can draw the same map.
+    // A tile is visible in the current frame if its stamp equals visibleEpoch.
+    private int[] visibleStamps = new int[0];
+    private int[] centerStamps = new int[0];
+    private int visibleEpoch;
+
+    // Visible entities, sorted back to front. Pooled to avoid allocations each frame.
+    private final List<VisibleEntity> visibleEntities = new ArrayList<>();
+    private final List<VisibleEntity> visibleEntityPool = new ArrayList<>();
 
     private final SoftTexture[] doorTextures = new SoftTexture[4];
     private final SoftTexture doorSideTexture;
@@ -142,8 +241,34 @@ public class SoftRender3D extends View {
     private final SoftTexture[] generatorTextures = new SoftTexture[2];
     private final SoftTexture[] exitTextures = new SoftTexture[2];
 
-    private float focalDistance;
+    private volatile float focalDistance;
     private boolean drawDepthShading = true;
+    private boolean lightingEnabled = true;
+
+    // Entity picking. Each pixel holds an index into pickEntities, plus one. Zero means no entity.
+    // Sprites that can't be picked write zero, so they hide pickable sprites behind them.
+    // Frames are drawn into entityIdBuffer, which is then swapped with the published buffer, so
+    // that other threads can pick from the last rendered frame. The published buffer, and the
+    // size of both buffers, are guarded by pickLock.
+    private volatile Class<? extends Entity> pickableEntityClass;
+    private static final int NO_ENTITY_ID = -1;
+    private int[] entityIdBuffer;
+    private boolean entityIdBufferDirty;
+    // The entities of both buffers are reused lists, swapped with the buffers
+    private List<Entity> pickEntities = new ArrayList<>();
+    private final Object pickLock = new Object();
+    private int[] publishedEntityIdBuffer;
+    private boolean publishedEntityIdBufferDirty;
+    private List<Entity> publishedPickEntities = new ArrayList<>();
+    private int pickWidth;
+    private int pickHeight;
+
+    // Debug overlay. For OVERDRAW, each pixel holds a write count. For MIP, each pixel holds the
+    // mip level plus one. Zero means nothing was drawn.
+    private DebugOverlay debugOverlay = DebugOverlay.NONE;
+    private int[] debugBuffer;
+
+    private FrameCapture frameCapture;
 
     // Fixed point numbers start with 'f_'
     private int f_cameraX;
@@ -151,37 +276,38 @@ public class SoftRender3D extends View {
     private int f_cameraZ;
     private int cameraAngle;
 
-    private int[] rayAngleTable;
-    private final int[] f_cosTable;
-    private final int[] f_sinTable;
-    private final int[] f_tanTable;
-    private final int[] f_cotTable;
+    // Replaced, never modified, on resize
+    private volatile int[] rayAngleTable;
 
     private Ray[] rays;
 
-    public SoftRender3D(HashMap<String, SoftTexture> textureCache) {
-        f_cosTable = new int[NUM_DEGREES];
-        f_sinTable = new int[NUM_DEGREES];
-        f_tanTable = new int[NUM_DEGREES];
-        f_cotTable = new int[NUM_DEGREES];
-        for (int i = 0; i < NUM_DEGREES; i++) {
-            f_cosTable[i] = toFixedPoint(Math.cos(angleToRadians(i)));
-            f_sinTable[i] = toFixedPoint(Math.sin(angleToRadians(i)));
-            f_tanTable[i] = toFixedPoint(Math.tan(angleToRadians(i)));
-            f_cotTable[i] = toFixedPoint(1 / Math.tan(angleToRadians(i)));
+    /**
+     * Creates a renderer. If the texture manager has a palette, textures are drawn indexed. The
+     * door, generator, exit and window textures are pinned, so they are always resident.
+     */
+    public SoftRender3D(TextureManager textureManager) {
+        Palette palette = textureManager.getPalette();
+        this.palette = palette;
+        if (palette == null) {
+            colormaps = null;
+        } else {
+            colormaps = new byte[(MAX_SHADE >> SHADE_COLORMAP_BITS) + 1][];
+            for (int i = 0; i < colormaps.length; i++) {
+                colormaps[i] = palette.createColormap((float) (i << SHADE_COLORMAP_BITS) / NORMAL_SHADE);
+            }
         }
 
         for (int i = 0; i < doorTextures.length; i++) {
-            doorTextures[i] = textureCache.get("door0" + i + ".png");
+            doorTextures[i] = textureManager.pin("door0" + i + ".png");
         }
         for (int i = 0; i < generatorTextures.length; i++) {
-            generatorTextures[i] = textureCache.get("generator0" + i + ".png");
+            generatorTextures[i] = textureManager.pin("generator0" + i + ".png");
         }
         for (int i = 0; i < exitTextures.length; i++) {
-            exitTextures[i] = textureCache.get("exit0" + i + ".png");
+            exitTextures[i] = textureManager.pin("exit0" + i + ".png");
         }
-        windowTexture = textureCache.get("window00.png");
-        doorSideTexture = textureCache.get("wall07.png");
+        windowTexture = textureManager.pin("window00.png");
+        doorSideTexture = textureManager.pin("wall07.png");
     }
 
     @Override
@@ -189,18 +315,65 @@ public class SoftRender3D extends View {
         onResize();
     }
 
-    public Map getMap() {
+    public MapSnapshot getMap() {
         return map;
     }
 
-    public void setMap(Map map) {
+    /**
+     * Sets the snapshot of the map to draw, and moves the camera to the snapshot's camera. When the
+     * snapshot is of a different map than the current one, the last frame's picking is cleared.
+     */
+    public void setMap(MapSnapshot map) {
+        MapSnapshot oldMap = this.map;
         this.map = map;
+        if (map == null || !map.isSameMap(oldMap)) {
+            visibleEntities.clear();
+            synchronized (pickLock) {
+                clearEntityIdBuffer();
+                pickEntities.clear();
+                if (publishedEntityIdBuffer != null && publishedEntityIdBufferDirty) {
+                    Arrays.fill(publishedEntityIdBuffer, 0);
+                    publishedEntityIdBufferDirty = false;
+                }
+                publishedPickEntities.clear();
+            }
+        }
         if (map != null) {
-            Player player = map.getPlayer();
-            setCamera(player.getX(), player.getY(), player.getZ(), player.getDirection());
+            int numTiles = map.getWidth() * map.getHeight();
+            if (visibleStamps.length != numTiles) {
+                visibleStamps = new int[numTiles];
+                centerStamps = new int[numTiles];
+                visibleEpoch = 0;
+            }
+            setCamera(map.getCameraX(), map.getCameraY(), map.getCameraZ(), map.getCameraDirection());
+        }
+    }
+
+    /**
+     * Draws the camera and entities between their locations at the previous tick (0) and at the
+     * snapshot's tick (1), for frames drawn between ticks. See
+     * {@link MapSnapshot#setInterpolation(float)}.
+     */
+    public void setInterpolation(float interpolation) {
+        interpolation = Math.max(0, Math.min(1, interpolation));
+        if (map != null && map.getInterpolation() != interpolation) {
+            map.setInterpolation(interpolation);
+            setCamera(map.getCameraX(), map.getCameraY(), map.getCameraZ(), map.getCameraDirection());
         }
     }
 
+    public boolean isMarkExploredTiles() {
+        return markExploredTiles;
+    }
+
+    /**
+     * Sets whether tiles seen by this renderer are marked as explored in the map. This should
+     * only be enabled for the player's view. The default is true.
+     */
+    public void setMarkExploredTiles(boolean markExploredTiles) {
+        this.markExploredTiles = markExploredTiles;
+    }
+
     public boolean isDepthShadingEnabled() {
         return drawDepthShading;
     }
@@ -209,13 +382,147 @@ public class SoftRender3D extends View {
         this.drawDepthShading = drawDepthShading;
     }
 
+    public boolean isLightingEnabled() {
+        return lightingEnabled;
+    }
+
+    public void setLightingEnabled(boolean lightingEnabled) {
+        this.lightingEnabled = lightingEnabled;
+    }
+
+    /**
+     * Gets the focal distance, in pixels. Thread-safe.
+     */
+    public float getFocalDistance() {
+        return focalDistance;
+    }
+
+    /**
+     * Checks if entity picking is enabled. Thread-safe.
+     */
+    public boolean isEntityPickingEnabled() {
+        return pickableEntityClass != null;
+    }
+
+    /**
+     * Sets the type of entities that can be picked with {@link #getEntityAt(int, int)}. When set,
+     * an entity id is written for each visible sprite pixel of that type while drawing, and
+     * other sprites clear the pixels they cover. Set to null to disable picking.
+     */
+    public void setPickableEntityClass(Class<? extends Entity> pickableEntityClass) {
+        this.pickableEntityClass = pickableEntityClass;
+        synchronized (pickLock) {
+            entityIdBuffer = null;
+            publishedEntityIdBuffer = null;
+            if (pickableEntityClass != null && dstBuffer != null) {
+                allocEntityIdBuffers(dstBuffer.getWidth(), dstBuffer.getHeight());
+            }
+            entityIdBufferDirty = false;
+            publishedEntityIdBufferDirty = false;
+            pickEntities.clear();
+            publishedPickEntities.clear();
+        }
+    }
+
+    /**
+     * Gets the pickable entity drawn at location (x, y) in the last rendered frame, or null if
+     * there is none. The entity is the one the drawn sprite was copied from. Thread-safe.
+     */
+    public Entity getEntityAt(int x, int y) {
+        synchronized (pickLock) {
+            if (publishedEntityIdBuffer == null || x < 0 || y < 0 || x >= pickWidth || y >= pickHeight) {
+                return null;
+            }
+            int id = publishedEntityIdBuffer[x + y * pickWidth];
+            return id == 0 ? null : publishedPickEntities.get(id - 1);
+        }
+    }
+
+    private void allocEntityIdBuffers(int w, int h) {
+        entityIdBuffer = new int[w * h];
+        publishedEntityIdBuffer = new int[w * h];
+        pickWidth = w;
+        pickHeight = h;
+    }
+
+    private void clearEntityIdBuffer() {
+        if (entityIdBufferDirty) {
+            Arrays.fill(entityIdBuffer, 0);
+            entityIdBufferDirty = false;
+        }
+    }
+
+    private void publishEntityIdBuffer() {
+        synchronized (pickLock) {
+            int[] ids = publishedEntityIdBuffer;
+            boolean dirty = publishedEntityIdBufferDirty;
+            List<Entity> entities = publishedPickEntities;
+            publishedEntityIdBuffer = entityIdBuffer;
+            publishedEntityIdBufferDirty = entityIdBufferDirty;
+            publishedPickEntities = pickEntities;
+            entityIdBuffer = ids;
+            entityIdBufferDirty = dirty;
+            pickEntities = entities;
+        }
+    }
+
+    public FrameCapture getFrameCapture() {
+        return frameCapture;
+    }
+
+    /**
+     * Sets the frame capture that receives each rendered frame while a capture is pending.
+     */
+    public void setFrameCapture(FrameCapture frameCapture) {
+        this.frameCapture = frameCapture;
+    }
+
+    public View getOverlayView() {
+        return overlayView;
+    }
+
+    /**
+     * Sets views to draw on top of the rendered view, like a HUD. They are drawn in software into
+     * the frame buffer (see {@link SoftViewCompositor}), so the frame is drawn to the screen with a
+     * single image copy. The overlay view is not a subview of this view; its location is ignored.
+     * Frame captures don't include the overlay.
+     */
+    public void setOverlayView(View overlayView) {
+        this.overlayView = overlayView;
+    }
+
+    public DebugOverlay getDebugOverlay() {
+        return debugOverlay;
+    }
+
+    /**
+     * Sets a heatmap to draw on top of the rendered view, showing where rendering work is spent.
+     */
+    public void setDebugOverlay(DebugOverlay debugOverlay) {
+        this.debugOverlay = debugOverlay;
+        allocDebugBuffer();
+    }
+
+    private void allocDebugBuffer() {
+        if ((debugOverlay == DebugOverlay.OVERDRAW || debugOverlay == DebugOverlay.MIP) && dstBuffer != null) {
+            int size = dstBuffer.getWidth() * dstBuffer.getHeight();
+            if (debugBuffer == null || debugBuffer.length != size) {
+                debugBuffer = new int[size];
+            }
+        } else {
+            debugBuffer = null;
+        }
+    }
+
     /**
-     * Gets the view angle, in degrees, at location x within the view.
+     * Gets the view angle, in degrees, at location x within the view, for a camera facing the
+     * specified direction. Thread-safe.
      */
-    public float getAngleAt(int x) {
+    public float getAngleAt(int x, float directionInDegrees) {
+        int[] rayAngleTable = this.rayAngleTable;
         x = Math.max(0, x);
         x = Math.min(x, rayAngleTable.length - 1);
-        return angleToDegrees((rayAngleTable[x] - cameraAngle) & NUM_DEGREES_MASK);
+        return angleToDegrees((rayAngleTable[x] - degreesToAngle(directionInDegrees)) & NUM_DEGREES_MASK);
     }
 
     @Override
@@ -232,14 +539,26 @@ public class SoftRender3D extends View {
         }
         dstBuffer = new SoftTexture(w, h);
         bufferedImage = dstBuffer.getBufferedImageView();
+        if (palette != null) {
+            indexedBuffer = new SoftTexture(w, h, true);
+        }
+        synchronized (pickLock) {
+            if (pickableEntityClass != null) {
+                allocEntityIdBuffers(w, h);
+                entityIdBufferDirty = false;
+                publishedEntityIdBufferDirty = false;
+            }
+        }
+        allocDebugBuffer();
 
-        focalDistance = (float) (w / (2 * Math.tan(Math.toRadians(fov) / 2)));
-
-        rayAngleTable = new int[w];
+        float focalDistance = (float) (w / (2 * Math.tan(Math.toRadians(fov) / 2)));
+        int[] rayAngleTable = new int[w];
         for (int i = 0; i < w; i++) {
             double d = Math.atan2(i - w / 2, focalDistance);
             rayAngleTable[i] = radiansToAngle(d);
         }
+        this.focalDistance = focalDistance;
+        this.rayAngleTable = rayAngleTable;
 
         rays = new Ray[w];
         for (int i = 0; i < w; i++) {
@@ -255,6 +574,9 @@ public class SoftRender3D extends View {
             bgImage = getScaledInstance(bgImage, backgroundWidth, backgroundHeight);
         }
         background = new SoftTexture(bgImage);
+        if (palette != null) {
+            background.convertToIndexed(palette);
+        }
     }
 
     private static BufferedImage getScaledInstance(BufferedImage srcImage, int width, int height) {
@@ -286,34 +608,101 @@ public class SoftRender3D extends View {
         f_cameraY = toFixedPoint(y);
         f_cameraZ = toFixedPoint(z);
         cameraAngle = degreesToAngle(directionInDegrees);
+        setDirty();
+    }
+
+    @Override
+    public void onTick() {
+        // The overlay view is drawn into the frame, so changes to it are changes to this view
+        if (overlayView != null && overlayView.isDirty()) {
+            Rectangle2D.Float dirtyRect = overlayView.getDirtyRect();
+            setDirty(dirtyRect.x, dirtyRect.y, dirtyRect.width, dirtyRect.height);
+            overlayView.clearDirty();
+        }
     }
 
     @Override
     public void onDraw(Graphics2D g) {
         if (map != null) {
-            List<Entity> visibleEntities = raycast();
+            render();
+            if (overlayView != null) {
+                overlayCompositor.draw(overlayView, dstBuffer);
+            }
+            g.drawImage(bufferedImage, null, null);
+        }
+    }
 
-            drawBackground();
+    /**
+     * Renders the map from the camera into this renderer's frame buffer (see
+     * {@link #getFrameImage()}), without drawing it to the screen.
+     * <p>
+     * Several renderers can render the same snapshot at the same time, from different threads. The
+     * snapshot must not be modified while rendering. If {@link #isMarkExploredTiles()} is enabled,
+     * only one renderer at a time should render snapshots of the map.
+     */
+    public void render() {
+        if (map != null) {
+            if (debugBuffer != null) {
+                Arrays.fill(debugBuffer, 0);
+            }
+
+            raycast();
+
+            if (map.isSkyVisible()) {
+                drawBackground();
+            }
             drawWalls();
-            drawFloors();
-            drawEntities(visibleEntities);
+            drawFloorsAndCeilings();
+            drawEntities();
+            if (entityIdBuffer != null) {
+                publishEntityIdBuffer();
+            }
 
-            g.drawImage(bufferedImage, null, null);
+            if (indexedBuffer != null) {
+                convertIndexedBuffer();
+            }
+
+            if (debugOverlay != DebugOverlay.NONE) {
+                drawDebugOverlay();
+            }
+
+            if (frameCapture != null && frameCapture.isCapturePending()) {
+                frameCapture.submitFrame(dstBuffer.getData(), dstBuffer.getWidth(), dstBuffer.getHeight());
+            }
         }
     }
 
+    /**
+     * Gets the image the frame is rendered into. The image is replaced when the view is resized.
+     */
+    public BufferedImage getFrameImage() {
+        return bufferedImage;
+    }
+
     private void drawBackground() {
         if (RENDER_TEST) {
             Arrays.fill(dstBuffer.getData(), 0xffffff00);
         } else {
             int bd = background.getWidth() * 2;
             int backgroundX = (cameraAngle & NUM_DEGREES_MASK) * bd / NUM_DEGREES - bd;
-            dstBuffer.draw(background, backgroundX, 0, true);
-            dstBuffer.draw(background, backgroundX + background.getWidth(), 0, true);
-            dstBuffer.draw(background, backgroundX + background.getWidth() * 2, 0, true);
+            SoftTexture buffer = indexedBuffer != null ? indexedBuffer : dstBuffer;
+            buffer.draw(background, backgroundX, 0, true);
+            buffer.draw(background, backgroundX + background.getWidth(), 0, true);
+            buffer.draw(background, backgroundX + background.getWidth() * 2, 0, true);
+            if (debugBuffer != null) {
+                int width = dstBuffer.getWidth();
+                int height = Math.min(dstBuffer.getHeight(), background.getHeight());
+                for (int x = 0; x < width; x++) {
+                    markDebugSpan(x, height, width, -1);
+                }
+            }
         }
     }
 
+    private void convertIndexedBuffer() {
+        PixelKernels.convertIndexed(indexedBuffer.getIndexedData(), dstBuffer.getData(), palette.getColors());
+    }
+
     private void drawWalls() {
         int f_focalDistance = toFixedPoint(focalDistance);
         int dstWidth = dstBuffer.getWidth();
@@ -326,17 +715,39 @@ public class SoftRender3D extends View {
                 int f_wallTop = f_dstMidY - mulDiv(ONE - f_cameraZ, f_focalDistance, ray.f_dist);
                 if (f_wallBottom > f_wallTop) {
                     int depth = drawDepthShading ? Math.min(DEPTH_MAX, toIntFloor(ray.f_dist * DEPTH_SCALE)) : 0;
-                    ray.floorDrawY = drawTextureSliver(ray.texture, true, ray.sliver, depth,
+                    int shade = getShade(depth, ray.light);
+                    ray.ceilingDrawY = toIntCeil(f_wallTop);
+                    ray.floorDrawY = drawTextureSliver(ray.texture, true, ray.sliver, shade, NO_ENTITY_ID,
                             dstWidth - x - 1, f_wallTop, f_wallBottom);
                 }
             }
         }
     }
 
-    private void drawFloors() {
+    private void drawFloorsAndCeilings() {
+        if (!map.hasCeilings()) {
+            drawFlats(f_cameraZ, true, false);
+        } else if (f_cameraZ == ONE_HALF) {
+            // Floor and ceiling rows the same distance from the horizon are the same distance from
+            // the camera, so they share texture coordinates, depth and mip level.
+            drawFlats(f_cameraZ, true, true);
+        } else {
+            drawFlats(f_cameraZ, true, false);
+            drawFlats(ONE - f_cameraZ, false, true);
+        }
+    }
+
+    /**
+     * Draws floors and/or ceilings, row by row from the horizon outward. Each floor row is below the
+     * horizon and each ceiling row is above it, mirrored. f_z is the distance from the camera to the
+     * plane.
+     */
+    private void drawFlats(final int f_z, final boolean drawFloor, final boolean drawCeiling) {
         int[] dstData = dstBuffer.getData();
+        byte[] dstIndexedData = indexedBuffer != null ? indexedBuffer.getIndexedData() : null;
         int viewWidth = dstBuffer.getWidth();
         int viewHeight = dstBuffer.getHeight();
+        int midY = viewHeight / 2;
 
         // Basically, we know screen_x, screen_y, and z.  Solve for x and y
         //
@@ -357,27 +768,39 @@ public class SoftRender3D extends View {
         long f_cosCameraAngle = f_cosTable[cameraAngle];
         long f_sinCameraAngle = f_sinTable[cameraAngle];
 
-        int tx1 = mul(f_focalDistance, f_cameraZ);
-        int ty1 = (viewWidth / 2) * f_cameraZ;
+        int tx1 = mul(f_focalDistance, f_z);
+        int ty1 = (viewWidth / 2) * f_z;
         long txStart = tx1 * f_cosCameraAngle + ty1 * f_sinCameraAngle;
         long tyStart = -tx1 * f_sinCameraAngle + ty1 * f_cosCameraAngle;
-        long tIncStartSin = -f_cameraZ * f_sinCameraAngle;
-        long tIncStartCos = -f_cameraZ * f_cosCameraAngle;
+        long tIncStartSin = -f_z * f_sinCameraAngle;
+        long tIncStartCos = -f_z * f_cosCameraAngle;
 
-        int firstY = viewHeight / 2 + 1;
-        int startDestOffset = firstY * viewWidth + (viewWidth - 1);
+        int lastRow = Math.max(drawFloor ? viewHeight - 1 - midY : 0, drawCeiling ? midY : 0);
+        int floorStartOffset = (midY + 1) * viewWidth + (viewWidth - 1);
+        int ceilingStartOffset = (midY - 1) * viewWidth + (viewWidth - 1);
         int lastMapX = -1;
         int lastMapY = -1;
 
         SoftTexture defaultFloorTexture = map.getDefaultFloorTexture();
-        int[] textureData = defaultFloorTexture.getData();
-        int textureSizeBits = defaultFloorTexture.getSizeBits();
-
-        int startX = 0;
-        int endX = viewWidth;
-
-        for (int currentY = firstY; currentY < viewHeight; currentY++) {
-            int row = currentY - viewHeight / 2;
+        int[] floorData = defaultFloorTexture.getData();
+        IntBuffer floorOffHeapData = defaultFloorTexture.getOffHeapData();
+        byte[] floorIndexedData = defaultFloorTexture.getIndexedData();
+        int floorWidthBits = defaultFloorTexture.getWidthBits();
+        int floorHeightBits = defaultFloorTexture.getHeightBits();
+        int floorMipLevel = 0;
+        int[] ceilingData = null;
+        IntBuffer ceilingOffHeapData = null;
+        byte[] ceilingIndexedData = null;
+        int ceilingWidthBits = 0;
+        int ceilingHeightBits = 0;
+        int ceilingMipLevel = 0;
+        boolean hasCeiling = false;
+
+        for (int row = 1; row <= lastRow; row++) {
+            int floorY = midY + row;
+            int ceilingY = midY - row;
+            boolean floorRowVisible = drawFloor && floorY < viewHeight;
+            boolean ceilingRowVisible = drawCeiling && ceilingY >= 0;
 
             int tx = (int) ((txStart / row) >> FRACTION_BITS) + f_cameraX;
             int ty = (int) ((tyStart / row) >> FRACTION_BITS) + f_cameraY;
@@ -390,19 +813,26 @@ public class SoftRender3D extends View {
 
             int fxInc = (int) (txInc1 & FRACTION_MASK);
             int fyInc = (int) (tyInc1 & FRACTION_MASK);
-            int fx = startX * fxInc;
-            int fy = startX * fyInc;
+            int fx = 0;
+            int fy = 0;
 
-            int destOffset = startDestOffset - startX;
-            tx += startX * txInc;
-            ty += startX * tyInc;
+            int floorOffset = floorStartOffset;
+            int ceilingOffset = ceilingStartOffset;
 
-            int f_dist = (int) (((long) f_cameraZ * f_focalDistance / row) >> FRACTION_BITS);
+            int f_dist = (int) (((long) f_z * f_focalDistance / row) >> FRACTION_BITS);
             int depth = drawDepthShading ? Math.min(DEPTH_MAX, toIntFloor(f_dist * DEPTH_SCALE)) : 0;
             int size = f_dist <= 0 ? Integer.MAX_VALUE : toIntFloor(div(f_focalDistance, f_dist));
+            int shade = NORMAL_SHADE;
+            byte[] colormap = null;
 
-            for (int x = startX; x < endX; x++) {
-                if (currentY >= rays[x].floorDrawY) {
+            // Shade is per tile, so look up the first tile of each row again
+            lastMapX = -1;
+
+            for (int x = 0; x < viewWidth; x++) {
+                Ray ray = rays[x];
+                boolean floorVisible = floorRowVisible && floorY >= ray.floorDrawY;
+                boolean ceilingVisible = ceilingRowVisible && ceilingY < ray.ceilingDrawY;
+                if (floorVisible || ceilingVisible) {
                     int mapX = tx >> FRACTION_BITS;
                     int mapY = ty >> FRACTION_BITS;
 
@@ -415,25 +845,80 @@ public class SoftRender3D extends View {
                             texture = tile.getTexture();
                         }
 
-                        while (size < texture.getHeight() && texture.hasHalfSizeTexture()) {
+                        floorMipLevel = 0;
+                        while (size < Math.max(texture.getWidth(), texture.getHeight()) && texture.hasHalfSizeTexture()) {
                             texture = texture.getHalfSizeTexture();
+                            floorMipLevel++;
                         }
 
-                        textureData = texture.getData();
-                        textureSizeBits = texture.getSizeBits();
+                        floorData = texture.getData();
+                        floorOffHeapData = texture.getOffHeapData();
+                        floorIndexedData = texture.getIndexedData();
+                        floorWidthBits = texture.getWidthBits();
+                        floorHeightBits = texture.getHeightBits();
+
+                        SoftTexture ceilingTexture = tile == null ? null : tile.getCeilingTexture();
+                        hasCeiling = ceilingTexture != null;
+                        if (hasCeiling) {
+                            ceilingMipLevel = 0;
+                            while (size < Math.max(ceilingTexture.getWidth(), ceilingTexture.getHeight()) &&
+                                    ceilingTexture.hasHalfSizeTexture()) {
+                                ceilingTexture = ceilingTexture.getHalfSizeTexture();
+                                ceilingMipLevel++;
+                            }
+
+                            ceilingData = ceilingTexture.getData();
+                            ceilingOffHeapData = ceilingTexture.getOffHeapData();
+                            ceilingIndexedData = ceilingTexture.getIndexedData();
+                            ceilingWidthBits = ceilingTexture.getWidthBits();
+                            ceilingHeightBits = ceilingTexture.getHeightBits();
+                        }
+
+                        shade = getShade(depth, lightingEnabled ? map.getLight(mapX, mapY) : LightGrid.NORMAL_LIGHT);
+                        colormap = colormaps != null ? colormaps[shade >> SHADE_COLORMAP_BITS] : null;
 
                         lastMapX = mapX;
                         lastMapY = mapY;
                     }
 
-                    int txTrans = ((tx & FRACTION_MASK) << textureSizeBits) >> FRACTION_BITS;
-                    int tyTrans = ((ty & FRACTION_MASK) << textureSizeBits) >> FRACTION_BITS;
+                    if (floorVisible) {
+                        int txTrans = ((tx & FRACTION_MASK) << floorWidthBits) >> FRACTION_BITS;
+                        int tyTrans = ((ty & FRACTION_MASK) << floorHeightBits) >> FRACTION_BITS;
 
-                    if (RENDER_TEST) {
-                        dstData[destOffset] = ((mapX + mapY) & 1) == 0 ? 0xff660000 : 0xff000066;
-                    } else {
-                        int srcColor = textureData[txTrans + (tyTrans << textureSizeBits)];
-                        drawPixel(dstData, destOffset, srcColor, depth);
+                        if (RENDER_TEST) {
+                            dstData[floorOffset] = ((mapX + mapY) & 1) == 0 ? 0xff660000 : 0xff000066;
+                        } else if (dstIndexedData != null) {
+                            int srcIndex = floorIndexedData[txTrans + (tyTrans << floorWidthBits)] & 0xff;
+                            dstIndexedData[floorOffset] = colormap[srcIndex];
+                        } else {
+                            // The texture, and so its storage, can change at any tile. The test
+                            // is predictable, so it isn't worth a loop per storage.
+                            int srcOffset = txTrans + (tyTrans << floorWidthBits);
+                            int srcColor = floorData != null ? floorData[srcOffset] : floorOffHeapData.get(srcOffset);
+                            drawPixel(dstData, floorOffset, srcColor, shade);
+                        }
+                        if (debugBuffer != null) {
+                            markDebugPixel(floorOffset, floorMipLevel);
+                        }
+                    }
+
+                    if (ceilingVisible && hasCeiling) {
+                        int txTrans = ((tx & FRACTION_MASK) << ceilingWidthBits) >> FRACTION_BITS;
+                        int tyTrans = ((ty & FRACTION_MASK) << ceilingHeightBits) >> FRACTION_BITS;
+
+                        if (RENDER_TEST) {
+                            dstData[ceilingOffset] = ((mapX + mapY) & 1) == 0 ? 0xff006600 : 0xff666600;
+                        } else if (dstIndexedData != null) {
+                            int srcIndex = ceilingIndexedData[txTrans + (tyTrans << ceilingWidthBits)] & 0xff;
+                            dstIndexedData[ceilingOffset] = colormap[srcIndex];
+                        } else {
+                            int srcOffset = txTrans + (tyTrans << ceilingWidthBits);
+                            int srcColor = ceilingData != null ? ceilingData[srcOffset] : ceilingOffHeapData.get(srcOffset);
+                            drawPixel(dstData, ceilingOffset, srcColor, shade);
+                        }
+                        if (debugBuffer != null) {
+                            markDebugPixel(ceilingOffset, ceilingMipLevel);
+                        }
                     }
                 }
                 fx += fxInc;
@@ -445,24 +930,36 @@ public class SoftRender3D extends View {
                 fx &= FRACTION_MASK;
                 fy &= FRACTION_MASK;
 
-                destOffset--;
+                floorOffset--;
+                ceilingOffset--;
             }
-            startDestOffset += viewWidth;
+            floorStartOffset += viewWidth;
+            ceilingStartOffset -= viewWidth;
         }
     }
 
-    private void drawEntities(List<Entity> visibleEntities) {
+    private void drawEntities() {
+        if (entityIdBuffer != null) {
+            clearEntityIdBuffer();
+            pickEntities.clear();
+            for (int i = 0; i < visibleEntities.size(); i++) {
+                pickEntities.add(visibleEntities.get(i).entity.getSource());
+            }
+        }
         if (visibleEntities.size() > 0) {
             int viewWidth = dstBuffer.getWidth();
             int viewHeight = dstBuffer.getHeight();
             float cameraX = toFloat(f_cameraX);
             float cameraY = toFloat(f_cameraY);
             float cameraZ = toFloat(f_cameraZ);
+            float focalDistance = this.focalDistance;
             float cosAngle = (float) Math.cos(angleToRadians(cameraAngle));
             float sinAngle = (float) Math.sin(angleToRadians(cameraAngle));
-            for (Entity entity : visibleEntities) {
+            for (int i = 0; i < visibleEntities.size(); i++) {
+                VisibleEntity visibleEntity = visibleEntities.get(i);
+                MapSnapshot.Sprite entity = visibleEntity.entity;
                 SoftTexture texture = entity.getTexture();
-                float dist = entity.getDistanceFromCamera();
+                float dist = visibleEntity.distance;
                 if (dist > 0 && texture != null) {
                     float dx = entity.getX() - cameraX;
                     float dy = entity.getY() - cameraY;
@@ -488,12 +985,28 @@ public class SoftRender3D extends View {
                     int x1 = toIntCeil(f_renderX);
                     int x2 = Math.min(viewWidth, x1 + toIntFloor(f_renderWidth));
                     int depth = drawDepthShading ? Math.min(DEPTH_MAX, (int) (dist * DEPTH_SCALE)) : 0;
+                    int light = LightGrid.NORMAL_LIGHT;
+                    if (lightingEnabled) {
+                        light = map.getLight((int) entity.getX(), (int) entity.getY());
+                    }
+                    int shade = getShade(depth, light);
                     int f_dist = toFixedPoint(dist);
+                    int entityId = NO_ENTITY_ID;
+                    if (entityIdBuffer != null) {
+                        if (pickableEntityClass.isInstance(entity.getSource()) && entity.getRadius() > 0) {
+                            entityId = i + 1;
+                            entityIdBufferDirty = true;
+                        } else {
+                            // Occluder: hides pickable sprites drawn behind it
+                            entityId = 0;
+                        }
+                    }
                     for (int x = Math.max(x1, 0); x < x2; x++) {
                         Ray ray = rays[viewWidth - x - 1];
                         if (f_dist < ray.f_dist) {
                             int f_sliver = div((x << FRACTION_BITS) - f_renderX, f_renderWidth);
-                            drawTextureSliver(texture, false, f_sliver, depth, x, f_renderY, f_renderY + f_renderHeight);
+                            drawTextureSliver(texture, false, f_sliver, shade, entityId,
+                                    x, f_renderY, f_renderY + f_renderHeight);
                         }
                     }
                 }
@@ -501,23 +1014,37 @@ public class SoftRender3D extends View {
         }
     }
 
-    private int drawTextureSliver(SoftTexture srcTexture, boolean srcOpaque, int f_sliver, int depth,
+    /**
+     * Draws a vertical sliver of a texture. Unless entityId is NO_ENTITY_ID, it is written to the
+     * entity id buffer for each non-transparent pixel (zero for sprites that can't be picked).
+     */
+    private int drawTextureSliver(SoftTexture srcTexture, boolean srcOpaque, int f_sliver, int shade, int entityId,
                                   final int dstX, final int f_dstY1, final int f_dstY2) {
         int dstY = toIntCeil(f_dstY1);
         int dstHeight = toIntCeil(f_dstY2) - dstY;
 
-        // Mip-mapping. Use half-size textures if available
-        while (dstHeight < srcTexture.getHeight() && srcTexture.hasHalfSizeTexture()) {
+        // Mip-mapping. Use half-size textures if available. Walls are square on screen, so use the
+        // larger texture dimension. Sprites keep their aspect ratio, so their height is enough.
+        int mipLevel = 0;
+        int srcSize = srcOpaque ? Math.max(srcTexture.getWidth(), srcTexture.getHeight()) : srcTexture.getHeight();
+        while (dstHeight < srcSize && srcTexture.hasHalfSizeTexture()) {
             srcTexture = srcTexture.getHalfSizeTexture();
+            srcSize /= 2;
+            mipLevel++;
         }
 
         final int[] dstData = dstBuffer.getData();
         final int dstViewWidth = dstBuffer.getWidth();
         final int dstViewHeight = dstBuffer.getHeight();
         final int[] srcData = srcTexture.getData();
+        final IntBuffer srcOffHeapData = srcTexture.getOffHeapData();
         final int srcViewWidth = srcTexture.getWidth();
         final int srcViewHeight = srcTexture.getHeight();
-        final int srcSizeBits = srcTexture.getSizeBits();
+        final int srcWidthBits = srcTexture.getWidthBits();
+        final int srcHeightBits = srcTexture.getHeightBits();
+        final byte[] dstIndexedData = indexedBuffer != null ? indexedBuffer.getIndexedData() : null;
+        final byte[] srcIndexedData = srcTexture.getIndexedData();
+        final byte[] colormap = colormaps != null ? colormaps[shade >> SHADE_COLORMAP_BITS] : null;
 
         int srcX = toIntFloor(srcViewWidth * f_sliver);
         int renderX = dstX;
@@ -552,7 +1079,7 @@ public class SoftRender3D extends View {
                 int renderOffset = renderX + renderY1 * dstViewWidth;
                 if (RENDER_TEST && srcOpaque) {
                     for (int y = renderY1; y < renderY2; y++) {
-                        if (f_y < 0 || f_y >= (ONE << srcSizeBits)) {
+                        if (f_y < 0 || f_y >= (ONE << srcHeightBits)) {
                             dstData[renderOffset] = 0xffff00ff;
                         } else {
                             dstData[renderOffset] = (toIntFloor(f_y) & 1) == 0 ? 0xff000000 : (srcX & 1) == 0 ? 0xffaaaaaa : 0xffb4b4b4;
@@ -560,16 +1087,67 @@ public class SoftRender3D extends View {
                         renderOffset += dstViewWidth;
                         f_y += f_dy;
                     }
-                } else if (srcOpaque && depth <= 256) {
+                } else if (dstIndexedData != null && srcOpaque) {
                     for (int y = renderY1; y < renderY2; y++) {
-                        dstData[renderOffset] = srcData[srcX + (toIntFloor(f_y) << srcSizeBits)];
+                        dstIndexedData[renderOffset] = colormap[srcIndexedData[srcX + (toIntFloor(f_y) << srcWidthBits)] & 0xff];
+                        renderOffset += dstViewWidth;
+                        f_y += f_dy;
+                    }
+                } else if (dstIndexedData != null) {
+                    for (int y = renderY1; y < renderY2; y++) {
+                        int srcIndex = srcIndexedData[srcX + (toIntFloor(f_y) << srcWidthBits)] & 0xff;
+                        if (srcIndex != Palette.TRANSPARENT_INDEX) {
+                            dstIndexedData[renderOffset] = colormap[srcIndex];
+                            if (entityId != NO_ENTITY_ID) {
+                                entityIdBuffer[renderOffset] = entityId;
+                            }
+                        }
+                        renderOffset += dstViewWidth;
+                        f_y += f_dy;
+                    }
+                } else if (srcOpaque && shade == NORMAL_SHADE && srcData != null) {
+                    for (int y = renderY1; y < renderY2; y++) {
+                        dstData[renderOffset] = srcData[srcX + (toIntFloor(f_y) << srcWidthBits)];
+                        renderOffset += dstViewWidth;
+                        f_y += f_dy;
+                    }
+                } else if (srcOpaque && shade == NORMAL_SHADE) {
+                    for (int y = renderY1; y < renderY2; y++) {
+                        dstData[renderOffset] = srcOffHeapData.get(srcX + (toIntFloor(f_y) << srcWidthBits));
+                        renderOffset += dstViewWidth;
+                        f_y += f_dy;
+                    }
+                } else if (entityId != NO_ENTITY_ID && srcData != null) {
+                    for (int y = renderY1; y < renderY2; y++) {
+                        int srcColor = srcData[srcX + (toIntFloor(f_y) << srcWidthBits)];
+                        if ((srcColor >>> 24) != 0) {
+                            entityIdBuffer[renderOffset] = entityId;
+                        }
+                        drawPixel(dstData, renderOffset, srcColor, shade);
+                        renderOffset += dstViewWidth;
+                        f_y += f_dy;
+                    }
+                } else if (entityId != NO_ENTITY_ID) {
+                    for (int y = renderY1; y < renderY2; y++) {
+                        int srcColor = srcOffHeapData.get(srcX + (toIntFloor(f_y) << srcWidthBits));
+                        if ((srcColor >>> 24) != 0) {
+                            entityIdBuffer[renderOffset] = entityId;
+                        }
+                        drawPixel(dstData, renderOffset, srcColor, shade);
+                        renderOffset += dstViewWidth;
+                        f_y += f_dy;
+                    }
+                } else if (srcData != null) {
+                    for (int y = renderY1; y < renderY2; y++) {
+                        int srcColor = srcData[srcX + (toIntFloor(f_y) << srcWidthBits)];
+                        drawPixel(dstData, renderOffset, srcColor, shade);
                         renderOffset += dstViewWidth;
                         f_y += f_dy;
                     }
                 } else {
                     for (int y = renderY1; y < renderY2; y++) {
-                        int srcColor = srcData[srcX + (toIntFloor(f_y) << srcSizeBits)];
-                        drawPixel(dstData, renderOffset, srcColor, depth);
+                        int srcColor = srcOffHeapData.get(srcX + (toIntFloor(f_y) << srcWidthBits));
+                        drawPixel(dstData, renderOffset, srcColor, shade);
                         renderOffset += dstViewWidth;
                         f_y += f_dy;
                     }
@@ -586,79 +1164,145 @@ public class SoftRender3D extends View {
                     firstPass = false;
                 }
             }
+            if (debugBuffer != null) {
+                markDebugSpan(renderX + renderY * dstViewWidth, renderHeight, dstViewWidth, mipLevel);
+            }
         }
         return renderY + renderHeight;
     }
 
-    private void drawPixel(int[] dstData, int dstOffset, int srcColor, int depth) {
+    /**
+     * Records a pixel write for the debug overlay. A mipLevel of -1 means the pixel isn't from
+     * a mip-mapped texture.
+     */
+    private void markDebugPixel(int offset, int mipLevel) {
+        if (debugOverlay == DebugOverlay.OVERDRAW) {
+            debugBuffer[offset]++;
+        } else {
+            debugBuffer[offset] = mipLevel + 1;
+        }
+    }
+
+    private void markDebugSpan(int offset, int count, int stride, int mipLevel) {
+        for (int i = 0; i < count; i++) {
+            markDebugPixel(offset, mipLevel);
+            offset += stride;
+        }
+    }
+
+    private void drawDebugOverlay() {
+        int[] dstData = dstBuffer.getData();
+        int viewWidth = dstBuffer.getWidth();
+        switch (debugOverlay) {
+            case OVERDRAW:
+                // One write is blue, five or more is red
+                for (int i = 0; i < dstData.length; i++) {
+                    int count = debugBuffer[i];
+                    if (count > 0) {
+                        drawDebugPixel(dstData, i, Math.min(255, (count - 1) * 64));
+                    }
+                }
+                break;
+            case MIP:
+                // Level 0 is blue, level 3 is red. Non-mip-mapped pixels are left as-is.
+                for (int i = 0; i < dstData.length; i++) {
+                    int mipLevel = debugBuffer[i] - 1;
+                    if (mipLevel >= 0) {
+                        drawDebugPixel(dstData, i, Math.min(255, mipLevel * 85));
+                    }
+                }
+                break;
+            case STEPS:
+                for (int x = 0; x < viewWidth; x++) {
+                    int steps = rays[viewWidth - x - 1].steps;
+                    int heat = Math.min(255, steps * 255 / DEBUG_MAX_RAY_STEPS);
+                    for (int offset = x; offset < dstData.length; offset += viewWidth) {
+                        drawDebugPixel(dstData, offset, heat);
+                    }
+                }
+                break;
+        }
+    }
+
+    private void drawDebugPixel(int[] dstData, int dstOffset, int heat) {
+        int heatColor = DEBUG_HEAT_COLORS[heat];
+        dstData[dstOffset] = 0xff000000 | (((dstData[dstOffset] >> 1) & 0x7f7f7f) + ((heatColor >> 1) & 0x7f7f7f));
+    }
+
+    /**
+     * Gets the shade to draw with, combining depth shading and the light level.
+     */
+    private int getShade(int depth, int light) {
+        int shade = depth > 256 ? (NORMAL_SHADE << 8) / depth : NORMAL_SHADE;
+        if (lightingEnabled) {
+            shade = (shade * light) / LightGrid.NORMAL_LIGHT;
+        }
+        return Math.min(MAX_SHADE, shade);
+    }
+
+    private void drawPixel(int[] dstData, int dstOffset, int srcColor, int shade) {
         int srcA = srcColor >>> 24;
-        if (srcA == 0xff && depth <= 256) {
+        if (srcA == 0xff && shade == NORMAL_SHADE) {
             dstData[dstOffset] = srcColor;
         } else if (srcA > 0) {
-            int dstColor = dstData[dstOffset];
-            int dstR = (dstColor >> 16) & 0xff;
-            int dstG = (dstColor >> 8) & 0xff;
-            int dstB = (dstColor & 0xff);
-            int srcR = (srcColor >> 16) & 0xff;
-            int srcG = (srcColor >> 8) & 0xff;
-            int srcB = (srcColor & 0xff);
-            if (depth > 256) {
-                srcR = (srcR << 8) / depth;
-                srcG = (srcG << 8) / depth;
-                srcB = (srcB << 8) / depth;
+            if (shade != NORMAL_SHADE) {
+                srcColor = PixelKernels.shade(srcColor, shade);
             }
-            int oneMinusSrcA = 0xff - srcA;
-
-            // For pre-multiplied color
-//          dstR = srcR + ((dstR * oneMinusSrcA) >> 8);
-//          dstG = srcG + ((dstG * oneMinusSrcA) >> 8);
-//          dstB = srcB + ((dstB * oneMinusSrcA) >> 8);
-
-            dstR = (srcA * srcR + dstR * oneMinusSrcA) >> 8;
-            dstG = (srcA * srcG + dstG * oneMinusSrcA) >> 8;
-            dstB = (srcA * srcB + dstB * oneMinusSrcA) >> 8;
-
-            dstData[dstOffset] = 0xff000000 | (dstR << 16) | (dstG << 8) | dstB;
+            dstData[dstOffset] = PixelKernels.blend(srcColor, dstData[dstOffset], srcA);
         }
     }
 
-    private List<Entity> getVisibleEntities() {
+    private void getVisibleEntities() {
         float cameraX = toFloat(f_cameraX);
         float cameraY = toFloat(f_cameraY);
         float cosAngle = (float) Math.cos(angleToRadians(cameraAngle));
         float sinAngle = (float) Math.sin(angleToRadians(cameraAngle));
 
         // Get visible objects
-        List<Entity> visibleEntities = new ArrayList<>();
-        for (Tile tile : visibleFloors) {
-            tile.renderVisible = 0;
-            List<Entity> entities = tile.getEntities();
+        visibleEntityPool.addAll(visibleEntities);
+        visibleEntities.clear();
+        for (int i = 0; i < visibleFloors.size(); i++) {
+            List<Entity> entities = visibleFloors.get(i).getEntities();
             if (entities != null) {
-                for (Entity entity : entities) {
-                    if (!(entity instanceof Player)) {
-                        float dx = entity.getX() - cameraX;
-                        float dy = entity.getY() - cameraY;
-                        entity.setDistanceFromCamera(dx * cosAngle - dy * sinAngle);
-                        visibleEntities.add(entity);
+                for (int j = 0; j < entities.size(); j++) {
+                    MapSnapshot.Sprite entity = (MapSnapshot.Sprite) entities.get(j);
+                    float dx = entity.getX() - cameraX;
+                    float dy = entity.getY() - cameraY;
+                    VisibleEntity visibleEntity;
+                    if (visibleEntityPool.isEmpty()) {
+                        visibleEntity = new VisibleEntity();
+                    } else {
+                        visibleEntity = visibleEntityPool.remove(visibleEntityPool.size() - 1);
                     }
+                    visibleEntity.entity = entity;
+                    visibleEntity.distance = dx * cosAngle - dy * sinAngle - entity.getDepthBias();
+                    visibleEntities.add(visibleEntity);
                 }
             }
         }
         visibleFloors.clear();
+        for (int i = 0; i < visibleEntityPool.size(); i++) {
+            visibleEntityPool.get(i).entity = null;
+        }
 
         // Sort visible entities from back to front
         Collections.sort(visibleEntities);
-
-        return visibleEntities;
     }
 
     /**
      * For each pixel across, cast a ray from the camera location, looking for x- and y-intersections.
      */
-    private List<Entity> raycast() {
+    private void raycast() {
         visibleFloors.clear();
+        visibleEpoch++;
+        if (visibleEpoch == 0) {
+            Arrays.fill(visibleStamps, 0);
+            Arrays.fill(centerStamps, 0);
+            visibleEpoch = 1;
+        }
         addVisibleFloor(toIntFloor(f_cameraX), toIntFloor(f_cameraY));
         int viewWidth = dstBuffer.getWidth();
+        int[] rayAngleTable = this.rayAngleTable;
         for (int x = 0; x < viewWidth; x++) {
             Ray ray = rays[x];
             ray.reset();
@@ -687,7 +1331,7 @@ public class SoftRender3D extends View {
             }
         }
 
-        return getVisibleEntities();
+        getVisibleEntities();
     }
 
     /**
@@ -722,6 +1366,7 @@ public class SoftRender3D extends View {
             if (tile == null) {
                 break;
             }
+            ray.steps++;
 
             if (tile.type == Tile.TYPE_NOTHING) {
                 // Skip it
@@ -732,7 +1377,13 @@ public class SoftRender3D extends View {
                     sliver = fracPart(f_rayX);
                 }
 
-                texture = tile.getTexture();
+                int face;
+                if (checkingY) {
+                    face = dir == 1 ? Tile.FACE_WEST : Tile.FACE_EAST;
+                } else {
+                    face = dir == 1 ? Tile.FACE_NORTH : Tile.FACE_SOUTH;
+                }
+                texture = tile.getTexture(face);
 
                 if (checkingY) {
                     Tile sideTile = map.getTileAt(tileX - dir, tileY);
@@ -838,15 +1489,24 @@ public class SoftRender3D extends View {
                 ray.f_dist = f_dist;
                 ray.sliver = sliver;
                 ray.texture = texture;
+                if (lightingEnabled) {
+                    // Light from the open tile in front of the hit
+                    if (checkingY) {
+                        ray.light = map.getLight(tileX - dir, tileY);
+                    } else {
+                        ray.light = map.getLight(tileX, tileY - dir);
+                    }
+                }
             }
         }
     }
 
     private void addVisibleFloor(int tileX, int tileY) {
-        Tile centerTile = map.getTileAt(tileX, tileY);
+        int mapWidth = map.getWidth();
+        int centerIndex = tileX + tileY * mapWidth;
 
         // If this tile has already been added as a center tile, do nothing.
-        if (centerTile.renderVisible == 2) {
+        if (centerStamps[centerIndex] == visibleEpoch) {
             return;
         }
 
@@ -854,15 +1514,21 @@ public class SoftRender3D extends View {
         for (int x = tileX - 1; x <= tileX + 1; x++) {
             for (int y = tileY - 1; y <= tileY + 1; y++) {
                 Tile tile = map.getTileAt(x, y);
-                if (tile != null && tile.renderVisible == 0) {
-                    tile.renderVisible = 1;
+                if (tile != null) {
+                    int index = x + y * mapWidth;
+                    if (visibleStamps[index] != visibleEpoch) {
+                        visibleStamps[index] = visibleEpoch;
+                        if (markExploredTiles) {
+                            map.markExplored(x, y);
+                        }
 
-                    visibleFloors.add(tile);
+                        visibleFloors.add(tile);
+                    }
                 }
             }
         }
 
         // Mark this tile as a center tile
-        centerTile.renderVisible = 2;
+        centerStamps[centerIndex] = visibleEpoch;
     }
 }
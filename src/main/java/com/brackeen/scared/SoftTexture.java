@@ -11,9 +11,15 @@ import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Collection;
 
 /**
  * A software texture for software rendering. Stored in normal RAM, instead of video ram.
+ * Pixels are either ARGB ints, or 8-bit indices into a {@link Palette}. ARGB pixels are either in
+ * an int array on the heap, or in off-heap memory (see {@link #moveOffHeap()}).
  */
 public class SoftTexture {
 
@@ -21,6 +27,7 @@ public class SoftTexture {
         AVERAGE,
         WEIGHTED_EVEN,
         WEIGHTED_ODD,
+        ALPHA_WEIGHTED,
     }
 
     private static int[] getImageData(BufferedImage image) {
@@ -68,41 +75,84 @@ public class SoftTexture {
 
     private final int width;
     private final int height;
-    private final int sizeBits;
-    private final int[] data;
-    private SoftTexture halfSizeTexture; // For mip-mapping
+    private final int widthBits;
+    private final int heightBits;
+    private int[] data;
+    private IntBuffer offHeapData;
+    private byte[] indexedData;
+    private volatile SoftTexture halfSizeTexture; // For mip-mapping
+    private DownscaleType downscaleType = DownscaleType.AVERAGE; // How halfSizeTexture was created
+
+    // Lazy mip-mapping: the number of half-size levels still to create on demand, and the
+    // downscale type for levels after the next one.
+    private int lazyLevels;
+    private DownscaleType lazyDownscaleType = DownscaleType.AVERAGE;
+    private Palette palette; // For downscaling indexed textures
+    private boolean touched;
 
     public SoftTexture(int width, int height) {
+        this(width, height, false);
+    }
+
+    public SoftTexture(int width, int height, boolean indexed) {
         this.width = width;
         this.height = height;
-        this.data = new int[width * height];
-        if (isPowerOfTwo(width) && width == height) {
-            sizeBits = log2(width);
+        if (indexed) {
+            this.indexedData = new byte[width * height];
         } else {
-            sizeBits = -1;
+            this.data = new int[width * height];
         }
+        this.widthBits = isPowerOfTwo(width) ? log2(width) : -1;
+        this.heightBits = isPowerOfTwo(height) ? log2(height) : -1;
+    }
+
+    private SoftTexture(int width, int height, IntBuffer offHeapData) {
+        this.width = width;
+        this.height = height;
+        this.offHeapData = offHeapData;
+        this.widthBits = isPowerOfTwo(width) ? log2(width) : -1;
+        this.heightBits = isPowerOfTwo(height) ? log2(height) : -1;
     }
 
     public SoftTexture(String imageName) {
         this(App.getApp().getImage(imageName));
     }
 
+    /**
+     * Creates a texture from an image. If the image is TYPE_INT_ARGB, its pixel array is used
+     * as-is; otherwise, the pixels are copied. Either way, once the image is no longer referenced,
+     * the texture has the only copy of the pixels.
+     */
     public SoftTexture(BufferedImage image) {
         this.width = image.getWidth();
         this.height = image.getHeight();
         this.data = getImageData(image);
-        if (isPowerOfTwo(width) && width == height) {
-            sizeBits = log2(width);
-        } else {
-            sizeBits = -1;
-        }
+        this.widthBits = isPowerOfTwo(width) ? log2(width) : -1;
+        this.heightBits = isPowerOfTwo(height) ? log2(height) : -1;
     }
 
     public boolean hasHalfSizeTexture() {
-        return halfSizeTexture != null;
+        return halfSizeTexture != null || lazyLevels > 0;
     }
 
+    /**
+     * Gets the half-size texture, creating it first if it is lazy. Thread-safe.
+     */
     public SoftTexture getHalfSizeTexture() {
+        SoftTexture texture = halfSizeTexture;
+        if (texture == null && lazyLevels > 0) {
+            texture = createLazyHalfSizeTexture();
+        }
+        if (texture != null) {
+            texture.touched = true;
+        }
+        return texture;
+    }
+
+    /**
+     * Gets the half-size texture if it has been created, without creating it.
+     */
+    public SoftTexture getCreatedHalfSizeTexture() {
         return halfSizeTexture;
     }
 
@@ -110,6 +160,101 @@ public class SoftTexture {
         this.halfSizeTexture = halfSizeTexture;
     }
 
+    /**
+     * Sets up half-size textures to be created on demand, the first time
+     * {@link #getHalfSizeTexture()} is called for each level. The first level is created with
+     * firstDownscaleType and the rest with downscaleType. Fewer levels are created if the texture
+     * size can't be halved that many times.
+     */
+    public synchronized void setLazyHalfSizeTextures(int levels, DownscaleType firstDownscaleType,
+                                                     DownscaleType downscaleType) {
+        int w = width;
+        int h = height;
+        int possibleLevels = 0;
+        while (possibleLevels < levels && (w & 1) == 0 && (h & 1) == 0 && w > 0 && h > 0) {
+            w /= 2;
+            h /= 2;
+            possibleLevels++;
+        }
+        this.halfSizeTexture = null;
+        this.downscaleType = firstDownscaleType;
+        this.lazyDownscaleType = downscaleType;
+        this.lazyLevels = possibleLevels;
+    }
+
+    /**
+     * Gets the number of half-size levels that will be created on demand.
+     */
+    public int getLazyLevels() {
+        return lazyLevels;
+    }
+
+    /**
+     * Gets the downscale type of lazy levels after the next one.
+     */
+    public DownscaleType getLazyDownscaleType() {
+        return lazyDownscaleType;
+    }
+
+    /**
+     * Checks if this texture was returned by {@link #getHalfSizeTexture()}, which means a renderer
+     * (or anything else) used this mip level.
+     */
+    public boolean isTouched() {
+        return touched;
+    }
+
+    private synchronized SoftTexture createLazyHalfSizeTexture() {
+        if (halfSizeTexture == null && lazyLevels > 0) {
+            SoftTexture texture = new SoftTexture(width / 2, height / 2, isIndexed());
+            downscale(texture, 0, 0, width, height, palette);
+            texture.palette = palette;
+            texture.setLazyHalfSizeTextures(lazyLevels - 1, lazyDownscaleType, lazyDownscaleType);
+            if (offHeapData != null) {
+                texture.moveOffHeap();
+            }
+            halfSizeTexture = texture;
+            lazyLevels = 0;
+        }
+        return halfSizeTexture;
+    }
+
+    /**
+     * Creates the lazy half-size textures of the specified textures on a background thread, so
+     * that they are ready before they are needed. Then runs onDone, if not null, on that thread.
+     */
+    public static void prefetchHalfSizeTextures(final Collection<SoftTexture> textures,
+                                                final Runnable onDone) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (SoftTexture texture : textures) {
+                    SoftTexture t = texture;
+                    while (t != null && t.hasHalfSizeTexture()) {
+                        t = t.halfSizeTexture != null ? t.halfSizeTexture : t.createLazyHalfSizeTexture();
+                    }
+                }
+                if (onDone != null) {
+                    onDone.run();
+                }
+            }
+        }, "MipPrefetch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Gets how the half-size texture was created. Used when it is updated.
+     */
+    public DownscaleType getDownscaleType() {
+        return downscaleType;
+    }
+
+    public void setDownscaleType(DownscaleType downscaleType) {
+        this.downscaleType = downscaleType;
+    }
+
     public int getWidth() {
         return width;
     }
@@ -118,18 +263,163 @@ public class SoftTexture {
         return height;
     }
 
+    /**
+     * Checks if the width and height are both powers of two. They don't need to be equal.
+     */
     public boolean isPowerOfTwo() {
-        return sizeBits >= 0;
+        return widthBits >= 0 && heightBits >= 0;
+    }
+
+    /**
+     * Gets log2 of the width, or -1 if the width is not a power of two. A pixel's offset is
+     * x + (y << widthBits).
+     */
+    public int getWidthBits() {
+        return widthBits;
     }
 
-    public int getSizeBits() {
-        return sizeBits;
+    /**
+     * Gets log2 of the height, or -1 if the height is not a power of two.
+     */
+    public int getHeightBits() {
+        return heightBits;
     }
 
+    /**
+     * Gets the ARGB pixels, or null if this texture is indexed or off-heap.
+     */
     public int[] getData() {
         return data;
     }
 
+    /**
+     * Gets the ARGB pixels in off-heap memory, or null if this texture is indexed or on the heap.
+     * Use absolute gets only, since the buffer is shared.
+     */
+    public IntBuffer getOffHeapData() {
+        return offHeapData;
+    }
+
+    public boolean isOffHeap() {
+        return offHeapData != null;
+    }
+
+    /**
+     * Moves the ARGB pixels of this texture and its half-size textures to off-heap memory, so
+     * they aren't scanned by the garbage collector. Half-size textures created later are
+     * off-heap, too. Does nothing if this texture is indexed.
+     */
+    public synchronized void moveOffHeap() {
+        if (data != null) {
+            IntBuffer buffer = allocateOffHeap(data.length);
+            buffer.put(data);
+            buffer.rewind();
+            offHeapData = buffer;
+            data = null;
+        }
+        if (halfSizeTexture != null) {
+            halfSizeTexture.moveOffHeap();
+        }
+    }
+
+    /**
+     * Creates an ARGB texture whose pixels are in off-heap memory, for filling with
+     * {@link #getOffHeapData()}.
+     */
+    public static SoftTexture createOffHeap(int width, int height) {
+        return new SoftTexture(width, height, allocateOffHeap(width * height));
+    }
+
+    private static IntBuffer allocateOffHeap(int length) {
+        return ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Gets the ARGB color of a pixel, wherever it is stored. For indexed textures, the color is
+     * looked up in the palette.
+     */
+    public int getPixel(int offset) {
+        if (data != null) {
+            return data[offset];
+        } else if (offHeapData != null) {
+            return offHeapData.get(offset);
+        } else {
+            return palette.getColors()[indexedData[offset] & 0xff];
+        }
+    }
+
+    private int[] getArgbCopy() {
+        int[] copy = new int[width * height];
+        if (data != null) {
+            System.arraycopy(data, 0, copy, 0, copy.length);
+        } else {
+            IntBuffer buffer = offHeapData.duplicate();
+            buffer.rewind();
+            buffer.get(copy);
+        }
+        return copy;
+    }
+
+    public boolean isIndexed() {
+        return indexedData != null;
+    }
+
+    /**
+     * Gets the palette indices, or null if this texture is not indexed.
+     */
+    public byte[] getIndexedData() {
+        return indexedData;
+    }
+
+    /**
+     * Converts this texture and its half-size textures to palette indices. The ARGB pixels are
+     * released.
+     */
+    public synchronized void convertToIndexed(Palette palette) {
+        this.palette = palette;
+        if (data != null) {
+            indexedData = palette.toIndexed(data);
+            data = null;
+        } else if (offHeapData != null) {
+            indexedData = palette.toIndexed(getArgbCopy());
+            offHeapData = null;
+        }
+        if (halfSizeTexture != null) {
+            halfSizeTexture.convertToIndexed(palette);
+        }
+    }
+
+    /**
+     * Gets the number of bytes used by the pixels of this texture and the half-size textures
+     * created so far.
+     */
+    public long getMemoryUsage() {
+        long bytes = 0;
+        for (SoftTexture t = this; t != null; t = t.halfSizeTexture) {
+            bytes += t.getLevelMemoryUsage();
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the number of bytes used by the pixels of this texture, not including its half-size
+     * textures.
+     */
+    public long getLevelMemoryUsage() {
+        byte[] indexed = indexedData;
+        int[] argb = data;
+        IntBuffer offHeapArgb = offHeapData;
+        if (indexed != null) {
+            return indexed.length;
+        } else if (argb != null) {
+            return argb.length * 4L;
+        } else if (offHeapArgb != null) {
+            return offHeapArgb.capacity() * 4L;
+        } else {
+            return 0;
+        }
+    }
+
     public BufferedImage getBufferedImageView() {
         DirectColorModel colorModel = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
         SampleModel sampleModel = new SinglePixelPackedSampleModel(
@@ -141,67 +431,113 @@ public class SoftTexture {
     }
 
     public boolean createHalfSizeTexture(DownscaleType downscaleType) {
-        if ((width & 1) != 0 || (height & 1) != 0) {
+        if ((width & 1) != 0 || (height & 1) != 0 || isIndexed()) {
             return false;
         }
-        halfSizeTexture = new SoftTexture(width / 2, height / 2);
-        int srcOffset = 0;
-        int dstOffset = 0;
-        for (int y = 0; y < height; y += 2) {
-            switch (downscaleType) {
-                case AVERAGE:
-                    for (int x = 0; x < width; x += 2) {
-                        int c1 = data[srcOffset];
-                        int c2 = data[srcOffset + 1];
-                        int c3 = data[srcOffset + width];
-                        int c4 = data[srcOffset + width + 1];
-
-                        int a = ((c1 >>> 24) + (c2 >>> 24) + (c3 >>> 24) + (c4 >>> 24)) >> 2;
-                        int r = (((c1 >> 16) & 0xff) + ((c2 >> 16) & 0xff) + ((c3 >> 16) & 0xff) + ((c4 >> 16) & 0xff)) >> 2;
-                        int g = (((c1 >> 8) & 0xff) + ((c2 >> 8) & 0xff) + ((c3 >> 8) & 0xff) + ((c4 >> 8) & 0xff)) >> 2;
-                        int b = ((c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff) + (c4 & 0xff)) >> 2;
-
-                        halfSizeTexture.data[dstOffset++] = (a << 24) | (r << 16) | (g << 8) | b;
-                        srcOffset += 2;
-                    }
-                    break;
-                case WEIGHTED_EVEN:
-                    for (int x = 0; x < width; x += 2) {
-                        int c1 = data[srcOffset];
-                        int c2 = data[srcOffset + 1];
-                        int c3 = data[srcOffset + width];
-                        int c4 = data[srcOffset + width + 1];
-
-                        int a = ((c1 >>> 24) * 5 + (c2 >>> 24) + (c3 >>> 24) + (c4 >>> 24)) >> 3;
-                        int r = (((c1 >> 16) & 0xff) * 5 + ((c2 >> 16) & 0xff) + ((c3 >> 16) & 0xff) + ((c4 >> 16) & 0xff)) >> 3;
-                        int g = (((c1 >> 8) & 0xff) * 5 + ((c2 >> 8) & 0xff) + ((c3 >> 8) & 0xff) + ((c4 >> 8) & 0xff)) >> 3;
-                        int b = ((c1 & 0xff) * 5 + (c2 & 0xff) + (c3 & 0xff) + (c4 & 0xff)) >> 3;
-
-                        halfSizeTexture.data[dstOffset++] = (a << 24) | (r << 16) | (g << 8) | b;
-                        srcOffset += 2;
-                    }
-                    break;
-                case WEIGHTED_ODD:
-                    for (int x = 0; x < width; x += 2) {
-                        int c1 = data[srcOffset];
-                        int c2 = data[srcOffset + 1];
-                        int c3 = data[srcOffset + width];
-                        int c4 = data[srcOffset + width + 1];
-
-                        int a = ((c1 >>> 24) + (c2 >>> 24) + (c3 >>> 24) + (c4 >>> 24) * 5) >> 3;
-                        int r = (((c1 >> 16) & 0xff) + ((c2 >> 16) & 0xff) + ((c3 >> 16) & 0xff) + ((c4 >> 16) & 0xff) * 5) >> 3;
-                        int g = (((c1 >> 8) & 0xff) + ((c2 >> 8) & 0xff) + ((c3 >> 8) & 0xff) + ((c4 >> 8) & 0xff) * 5) >> 3;
-                        int b = ((c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff) + (c4 & 0xff) * 5) >> 3;
-
-                        halfSizeTexture.data[dstOffset++] = (a << 24) | (r << 16) | (g << 8) | b;
-                        srcOffset += 2;
-                    }
-                    break;
+        SoftTexture texture = new SoftTexture(width / 2, height / 2);
+        this.downscaleType = downscaleType;
+        this.lazyLevels = 0;
+        downscale(texture, 0, 0, width, height, null);
+        if (offHeapData != null) {
+            texture.moveOffHeap();
+        }
+        halfSizeTexture = texture;
+        return true;
+    }
+
+    /**
+     * Creates a copy of this texture and its half-size textures, sharing no pixel data. The copy is
+     * on the heap, so it can be modified.
+     */
+    public SoftTexture copy() {
+        SoftTexture copy = new SoftTexture(width, height, isIndexed());
+        if (isIndexed()) {
+            System.arraycopy(indexedData, 0, copy.indexedData, 0, indexedData.length);
+        } else {
+            copy.data = getArgbCopy();
+        }
+        synchronized (this) {
+            copy.downscaleType = downscaleType;
+            copy.lazyLevels = lazyLevels;
+            copy.lazyDownscaleType = lazyDownscaleType;
+            copy.palette = palette;
+            if (halfSizeTexture != null) {
+                copy.halfSizeTexture = halfSizeTexture.copy();
             }
+        }
+        return copy;
+    }
 
-            srcOffset += width;
+    /**
+     * Updates the half-size textures after this texture's pixels were modified in the specified
+     * region. The palette is required if this texture is indexed.
+     */
+    public void updateHalfSizeTextures(int x, int y, int w, int h, Palette palette) {
+        SoftTexture halfSizeTexture = this.halfSizeTexture;
+        if (halfSizeTexture == null) {
+            // Lazy levels are created from the updated pixels
+            return;
+        }
+        // Expand to even bounds
+        int x1 = Math.max(0, x) & ~1;
+        int y1 = Math.max(0, y) & ~1;
+        int x2 = Math.min(width, (x + w + 1) & ~1);
+        int y2 = Math.min(height, (y + h + 1) & ~1);
+        if (x2 > x1 && y2 > y1) {
+            downscale(halfSizeTexture, x1, y1, x2 - x1, y2 - y1, palette);
+            halfSizeTexture.updateHalfSizeTextures(x1 / 2, y1 / 2, (x2 - x1) / 2, (y2 - y1) / 2, palette);
+        }
+    }
+
+    private int getColor(int offset, int[] colors) {
+        if (colors != null) {
+            return colors[indexedData[offset] & 0xff];
+        } else {
+            return data != null ? data[offset] : offHeapData.get(offset);
+        }
+    }
+
+    /**
+     * Downscales a region of this texture (even bounds) into the half-size texture.
+     */
+    private void downscale(SoftTexture halfSizeTexture, int x, int y, int w, int h, Palette palette) {
+        int[] colors = isIndexed() ? palette.getColors() : null;
+        for (int j = y; j < y + h; j += 2) {
+            int srcOffset = x + j * width;
+            int dstOffset = x / 2 + (j / 2) * halfSizeTexture.width;
+            for (int i = x; i < x + w; i += 2) {
+                int c1 = getColor(srcOffset, colors);
+                int c2 = getColor(srcOffset + 1, colors);
+                int c3 = getColor(srcOffset + width, colors);
+                int c4 = getColor(srcOffset + width + 1, colors);
+
+                int color;
+                switch (downscaleType) {
+                    case AVERAGE:
+                    default:
+                        color = PixelKernels.average(c1, c2, c3, c4);
+                        break;
+                    case WEIGHTED_EVEN:
+                        color = PixelKernels.weightedAverage(c1, c2, c3, c4);
+                        break;
+                    case WEIGHTED_ODD:
+                        color = PixelKernels.weightedAverage(c4, c1, c2, c3);
+                        break;
+                    case ALPHA_WEIGHTED:
+                        color = PixelKernels.alphaWeightedAverage(c1, c2, c3, c4);
+                        break;
+                }
+
+                if (colors != null) {
+                    halfSizeTexture.indexedData[dstOffset++] = (byte) palette.getIndex(color);
+                } else if (halfSizeTexture.data != null) {
+                    halfSizeTexture.data[dstOffset++] = color;
+                } else {
+                    halfSizeTexture.offHeapData.put(dstOffset++, color);
+                }
+                srcOffset += 2;
+            }
         }
-        return true;
     }
 
     /**
@@ -212,7 +548,8 @@ public class SoftTexture {
     }
 
     /**
-     * Draws the specified texture (source) onto this texture (dest).
+     * Draws the specified texture (source) onto this texture (dest). Both textures must be ARGB,
+     * or both must be indexed.
      */
     public void draw(SoftTexture src, int x, int y, int srcX, int srcY, int srcWidth, int srcHeight, boolean srcOpaque) {
         SoftTexture dest = this;
@@ -247,6 +584,12 @@ public class SoftTexture {
         int srcOffset = srcX + srcY * src.width;
         int destOffset = destX + destY * dest.width;
 
+        if (dest.isIndexed()) {
+            drawIndexed(src.indexedData, srcOffset, src.width, dest.indexedData, destOffset, dest.width,
+                    srcWidth, srcHeight, srcOpaque);
+            return;
+        }
+
         for (int i = 0; i < srcHeight; i++) {
             if (srcOpaque) {
                 System.arraycopy(srcData, srcOffset, destData, destOffset, srcWidth);
@@ -264,4 +607,25 @@ public class SoftTexture {
             destOffset += dest.width;
         }
     }
+
+    private static void drawIndexed(byte[] srcData, int srcOffset, int srcStride,
+                                    byte[] destData, int destOffset, int destStride,
+                                    int srcWidth, int srcHeight, boolean srcOpaque) {
+        for (int i = 0; i < srcHeight; i++) {
+            if (srcOpaque) {
+                System.arraycopy(srcData, srcOffset, destData, destOffset, srcWidth);
+            } else {
+                for (int j = 0; j < srcWidth; j++) {
+                    byte index = srcData[srcOffset + j];
+
+                    if (index != Palette.TRANSPARENT_INDEX) {
+                        destData[destOffset + j] = index;
+                    }
+                }
+            }
+
+            srcOffset += srcStride;
+            destOffset += destStride;
+        }
+    }
 }
@@ -0,0 +1,136 @@
+package com.brackeen.scared;
+
+import com.brackeen.app.view.ImageView;
+import com.brackeen.app.view.Label;
+import com.brackeen.app.view.View;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Draws a tree of views into a frame buffer in software, so that views drawn on top of the 3D view
+ * don't need Java2D. Supports the background color of any view, {@link ImageView}s and
+ * {@link Label}s (drawn with {@link Label#getTextImage()}), with opacity. Other kinds of views draw
+ * only their background and subviews.
+ * <p>
+ * Like Java2D drawing of views, only the location and anchor of each view are used. Locations
+ * are rounded to whole pixels. The root view is drawn at the frame buffer's origin.
+ */
+public class SoftViewCompositor {
+
+    // ARGB pixels of each image drawn. Images are expected not to change after they are drawn.
+    private final WeakHashMap<BufferedImage, int[]> imagePixels = new WeakHashMap<>();
+
+    public void draw(View root, SoftTexture dst) {
+        if (root.isVisible() && root.getOpacity() > 0) {
+            drawView(root, dst, 0, 0, root.getOpacity());
+        }
+    }
+
+    private void draw(View view, SoftTexture dst, float originX, float originY, float opacity) {
+        if (view.isVisible() && view.getOpacity() > 0) {
+            float x = originX + view.getX() - view.getAnchorX() * view.getWidth();
+            float y = originY + view.getY() - view.getAnchorY() * view.getHeight();
+            drawView(view, dst, x, y, opacity * view.getOpacity());
+        }
+    }
+
+    private void drawView(View view, SoftTexture dst, float x, float y, float opacity) {
+        int dstX = Math.round(x);
+        int dstY = Math.round(y);
+        int alpha = Math.round(opacity * 256);
+
+        Color backgroundColor = view.getBackgroundColor();
+        if (backgroundColor != null) {
+            fillRect(dst, dstX, dstY, Math.round(x + view.getWidth()) - dstX,
+                    Math.round(y + view.getHeight()) - dstY, backgroundColor.getRGB(), alpha);
+        }
+
+        BufferedImage image = null;
+        if (view instanceof ImageView) {
+            image = ((ImageView) view).getImage();
+        } else if (view instanceof Label) {
+            image = ((Label) view).getTextImage();
+        }
+        if (image != null) {
+            drawImage(dst, getPixels(image), image.getWidth(), image.getHeight(), dstX, dstY, alpha);
+        }
+
+        List<View> subviews = view.getSubviews();
+        for (int i = 0; i < subviews.size(); i++) {
+            draw(subviews.get(i), dst, x, y, opacity);
+        }
+    }
+
+    private int[] getPixels(BufferedImage image) {
+        int[] pixels = imagePixels.get(image);
+        if (pixels == null) {
+            pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+            imagePixels.put(image, pixels);
+        }
+        return pixels;
+    }
+
+    /**
+     * Fills a rectangle with an ARGB color.
+     *
+     * @param opacity The opacity, from 0 to 256.
+     */
+    private static void fillRect(SoftTexture dst, int x, int y, int w, int h, int color, int opacity) {
+        int dstWidth = dst.getWidth();
+        int x1 = Math.max(0, x);
+        int y1 = Math.max(0, y);
+        int x2 = Math.min(dstWidth, x + w);
+        int y2 = Math.min(dst.getHeight(), y + h);
+        int alpha = ((color >>> 24) * opacity) >> 8;
+        if (x1 >= x2 || y1 >= y2 || alpha == 0) {
+            return;
+        }
+        int[] dstData = dst.getData();
+        for (int dy = y1; dy < y2; dy++) {
+            int offset = dy * dstWidth;
+            if (alpha == 0xff) {
+                Arrays.fill(dstData, offset + x1, offset + x2, color);
+            } else {
+                for (int dx = x1; dx < x2; dx++) {
+                    dstData[offset + dx] = PixelKernels.blend(color, dstData[offset + dx], alpha);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws an ARGB image, blending by the alpha of each pixel.
+     *
+     * @param opacity The opacity, from 0 to 256.
+     */
+    private static void drawImage(SoftTexture dst, int[] src, int w, int h, int dstX, int dstY,
+                                  int opacity) {
+        int dstWidth = dst.getWidth();
+        int x1 = Math.max(0, dstX);
+        int y1 = Math.max(0, dstY);
+        int x2 = Math.min(dstWidth, dstX + w);
+        int y2 = Math.min(dst.getHeight(), dstY + h);
+        if (x1 >= x2 || y1 >= y2 || opacity <= 0) {
+            return;
+        }
+        int[] dstData = dst.getData();
+        for (int dy = y1; dy < y2; dy++) {
+            int srcOffset = (dy - dstY) * w + x1 - dstX;
+            int dstOffset = dy * dstWidth + x1;
+            for (int dx = x1; dx < x2; dx++) {
+                int srcColor = src[srcOffset++];
+                int alpha = ((srcColor >>> 24) * opacity) >> 8;
+                if (alpha == 0xff) {
+                    dstData[dstOffset] = srcColor;
+                } else if (alpha != 0) {
+                    dstData[dstOffset] = PixelKernels.blend(srcColor, dstData[dstOffset], alpha);
+                }
+                dstOffset++;
+            }
+        }
+    }
+}
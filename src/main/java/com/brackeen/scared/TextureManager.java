@@ -0,0 +1,375 @@
+package com.brackeen.scared;
+
+import com.brackeen.app.App;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps textures resident in memory as needed. Textures are registered by name at startup, and
+ * loaded (from the {@link BakedTextureCache}, or from their image) the first time they are
+ * requested.
+ * <p>
+ * When a level starts, {@link #setLevelTextures(Collection)} is called with the textures the level
+ * references. Other textures are evicted, least recently used first, until the resident textures
+ * fit within the memory budget. Pinned textures, like the ones the renderer always needs, are never
+ * evicted. Textures used by the current level are never evicted either, so the budget may be
+ * exceeded if a single level needs more.
+ * <p>
+ * Images are decoded here rather than with {@link App#getImage(String)}, so that the image isn't
+ * cached: each resident texture holds the only copy of its pixels.
+ */
+public class TextureManager {
+
+    private static final int MIP_MAP_COUNT = 3;
+
+    private static class Info {
+        final String fileName;
+        final SoftTexture.DownscaleType firstDownscaleType;
+        final SoftTexture.DownscaleType downscaleType;
+
+        Info(String fileName, SoftTexture.DownscaleType firstDownscaleType,
+             SoftTexture.DownscaleType downscaleType) {
+            this.fileName = fileName;
+            this.firstDownscaleType = firstDownscaleType;
+            this.downscaleType = downscaleType;
+        }
+    }
+
+    private final BakedTextureCache bakedTextureCache;
+    private final HashMap<String, Info> registered = new LinkedHashMap<>();
+    // Access-ordered, so the first entry is the least recently used
+    private final LinkedHashMap<String, SoftTexture> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> pinned = new HashSet<>();
+    private final Set<String> levelTextures = new HashSet<>();
+    private long budget;
+    private Palette palette;
+    private boolean offHeap;
+    private int loadCount;
+    private int evictionCount;
+
+    /**
+     * @param bakedTextureCache The cache of processed textures. May be null.
+     * @param budget The memory budget, in bytes.
+     */
+    public TextureManager(BakedTextureCache bakedTextureCache, long budget) {
+        this.bakedTextureCache = bakedTextureCache;
+        this.budget = budget;
+    }
+
+    /**
+     * Registers a texture, without loading it. All textures must be a size that is a power-of-two.
+     * MIP_MAP_COUNT half-size textures are created on demand, using firstDownscaleType for the
+     * first one and downscaleType for the rest.
+     *
+     * @param name The name used to get the texture.
+     * @param fileName The image resource.
+     */
+    public void register(String name, String fileName, SoftTexture.DownscaleType firstDownscaleType,
+                         SoftTexture.DownscaleType downscaleType) {
+        registered.put(name, new Info(fileName, firstDownscaleType, downscaleType));
+    }
+
+    public Set<String> getNames() {
+        return registered.keySet();
+    }
+
+    /**
+     * Gets a texture, loading it if it isn't resident. Returns null if the texture isn't
+     * registered or couldn't be loaded.
+     */
+    public SoftTexture get(String name) {
+        SoftTexture texture = resident.get(name);
+        if (texture == null) {
+            Info info = registered.get(name);
+            if (info == null) {
+                return null;
+            }
+            texture = load(name, info);
+            if (texture != null) {
+                resident.put(name, texture);
+                loadCount++;
+            }
+        }
+        return texture;
+    }
+
+    /**
+     * Gets a texture and keeps it resident.
+     */
+    public SoftTexture pin(String name) {
+        SoftTexture texture = get(name);
+        if (texture != null) {
+            pinned.add(name);
+        }
+        return texture;
+    }
+
+    private static String getRecipe(Info info) {
+        return info.firstDownscaleType + "," + info.downscaleType + "," + MIP_MAP_COUNT;
+    }
+
+    private SoftTexture load(String name, Info info) {
+        String recipe = getRecipe(info);
+        BakedTextureCache.Source source = null;
+        SoftTexture texture = null;
+        if (bakedTextureCache != null) {
+            source = BakedTextureCache.getResourceSource(info.fileName);
+            if (source != null) {
+                texture = bakedTextureCache.get(name, source, recipe, offHeap && palette == null);
+            }
+        }
+        if (texture == null) {
+            BufferedImage image = readImage(info.fileName);
+            if (image == null) {
+                App.logError("Could not load texture: " + info.fileName);
+                return null;
+            }
+            texture = new SoftTexture(image);
+            texture.setLazyHalfSizeTextures(MIP_MAP_COUNT, info.firstDownscaleType, info.downscaleType);
+            if (source != null && palette == null) {
+                bakedTextureCache.put(name, source, recipe, texture);
+            }
+        }
+        if (palette != null) {
+            texture.convertToIndexed(palette);
+        } else if (offHeap) {
+            texture.moveOffHeap();
+        }
+        return texture;
+    }
+
+    private static BufferedImage readImage(String fileName) {
+        URL url = App.getResource(fileName);
+        if (url == null) {
+            return null;
+        }
+        try {
+            return ImageIO.read(url);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Sets whether ARGB textures are stored in off-heap memory. Applies to resident textures and
+     * textures loaded later. Indexed textures are always on the heap.
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        if (offHeap) {
+            for (SoftTexture texture : resident.values()) {
+                texture.moveOffHeap();
+            }
+        }
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Sets the palette. Resident textures, and textures loaded later, are converted to indexed.
+     * Newly processed textures are saved to the baked texture cache first, while they are ARGB.
+     */
+    public void setPalette(Palette palette) {
+        if (bakedTextureCache != null) {
+            bakedTextureCache.save();
+        }
+        this.palette = palette;
+        for (SoftTexture texture : resident.values()) {
+            texture.convertToIndexed(palette);
+        }
+    }
+
+    public Palette getPalette() {
+        return palette;
+    }
+
+    /**
+     * Sets the textures used by the current level, loads any that are missing, and evicts unused
+     * textures until the resident textures fit within the budget.
+     * <p>
+     * Then the lazy half-size textures of the level's textures and the pinned textures are created
+     * on a background thread. After that, newly processed textures are saved to the baked texture
+     * cache, with their half-size textures, so they don't need to be created on the next launch.
+     */
+    public void setLevelTextures(Collection<String> names) {
+        levelTextures.clear();
+        levelTextures.addAll(names);
+        for (String name : names) {
+            get(name);
+        }
+        trim();
+
+        List<SoftTexture> textures = new ArrayList<>();
+        for (java.util.Map.Entry<String, SoftTexture> entry : resident.entrySet()) {
+            String name = entry.getKey();
+            SoftTexture texture = entry.getValue();
+            if (levelTextures.contains(name) || pinned.contains(name)) {
+                textures.add(texture);
+                if (bakedTextureCache != null && palette == null && hasLazyLevels(texture)) {
+                    // May have been cached before its half-size textures were created
+                    Info info = registered.get(name);
+                    BakedTextureCache.Source source = BakedTextureCache.getResourceSource(info.fileName);
+                    if (source != null) {
+                        bakedTextureCache.put(name, source, getRecipe(info), texture);
+                    }
+                }
+            }
+        }
+        Runnable onDone = null;
+        if (bakedTextureCache != null) {
+            onDone = new Runnable() {
+                @Override
+                public void run() {
+                    bakedTextureCache.save();
+                }
+            };
+        }
+        SoftTexture.prefetchHalfSizeTextures(textures, onDone);
+    }
+
+    private static boolean hasLazyLevels(SoftTexture texture) {
+        while (texture.getCreatedHalfSizeTexture() != null) {
+            texture = texture.getCreatedHalfSizeTexture();
+        }
+        return texture.getLazyLevels() > 0;
+    }
+
+    /**
+     * Evicts unused textures, least recently used first, until the resident textures fit within
+     * the budget.
+     */
+    public void trim() {
+        long bytes = getResidentBytes();
+        Iterator<java.util.Map.Entry<String, SoftTexture>> i = resident.entrySet().iterator();
+        while (bytes > budget && i.hasNext()) {
+            java.util.Map.Entry<String, SoftTexture> entry = i.next();
+            String name = entry.getKey();
+            if (!pinned.contains(name) && !levelTextures.contains(name)) {
+                bytes -= entry.getValue().getMemoryUsage();
+                i.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public void setBudget(long budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    /**
+     * Gets the number of bytes used by resident textures, including the half-size textures created
+     * so far.
+     */
+    public long getResidentBytes() {
+        long bytes = 0;
+        for (SoftTexture texture : resident.values()) {
+            bytes += texture.getMemoryUsage();
+        }
+        return bytes;
+    }
+
+    public int getResidentCount() {
+        return resident.size();
+    }
+
+    /**
+     * Gets the totals of the resident textures, for the console. Sizes are the bytes used by
+     * pixels.
+     */
+    public String getDescription() {
+        int evictable = 0;
+        long heapBytes = 0;
+        long offHeapBytes = 0;
+        long mipBytes = 0;
+        int mipLevels = 0;
+        int unusedMipLevels = 0;
+        int lazyLevels = 0;
+        for (java.util.Map.Entry<String, SoftTexture> entry : resident.entrySet()) {
+            String name = entry.getKey();
+            if (!pinned.contains(name) && !levelTextures.contains(name)) {
+                evictable++;
+            }
+            for (SoftTexture t = entry.getValue(); t != null; t = t.getCreatedHalfSizeTexture()) {
+                long bytes = t.getLevelMemoryUsage();
+                if (t.isOffHeap()) {
+                    offHeapBytes += bytes;
+                } else {
+                    heapBytes += bytes;
+                }
+                if (t != entry.getValue()) {
+                    mipBytes += bytes;
+                    mipLevels++;
+                    if (!t.isTouched()) {
+                        unusedMipLevels++;
+                    }
+                }
+                lazyLevels += t.getLazyLevels();
+            }
+        }
+        return ("resident=" + resident.size() + " of " + registered.size() +
+                " (pinned=" + pinned.size() + " level=" + levelTextures.size() +
+                " evictable=" + evictable + ")\n" +
+                "memory=" + (heapBytes + offHeapBytes) + " bytes (" + formatBytes(heapBytes + offHeapBytes) +
+                " of " + formatBytes(budget) + ")\n" +
+                "heap=" + formatBytes(heapBytes) + " off-heap=" + formatBytes(offHeapBytes) + "\n" +
+                "mips=" + formatBytes(mipBytes) + " (created=" + mipLevels + " unused=" + unusedMipLevels +
+                " lazy=" + lazyLevels + ")\n" +
+                "loads=" + loadCount + " evictions=" + evictionCount);
+    }
+
+    /**
+     * Gets the size of each resident texture and each of its mip levels, for the console. Mip
+     * levels that were created but never drawn are marked with '*'.
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (java.util.Map.Entry<String, SoftTexture> entry : resident.entrySet()) {
+            SoftTexture texture = entry.getValue();
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(entry.getKey());
+            sb.append(texture.isIndexed() ? " indexed" : texture.isOffHeap() ? " off-heap" : " heap");
+            SoftTexture last = texture;
+            for (SoftTexture t = texture; t != null; t = t.getCreatedHalfSizeTexture()) {
+                sb.append(' ').append(t.getWidth()).append('x').append(t.getHeight());
+                if (t != texture && !t.isTouched()) {
+                    sb.append('*');
+                }
+                sb.append('=').append(t.getLevelMemoryUsage());
+                last = t;
+            }
+            if (last.getLazyLevels() > 0) {
+                sb.append(" +").append(last.getLazyLevels()).append(" lazy");
+            }
+            sb.append(" total=").append(texture.getMemoryUsage());
+            if (pinned.contains(entry.getKey())) {
+                sb.append(" pinned");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatBytes(long bytes) {
+        return String.format("%.1fMB", bytes / (1024.0 * 1024.0));
+    }
+}
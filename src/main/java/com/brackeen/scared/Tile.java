@@ -17,12 +17,20 @@ public class Tile {
     public static final int TYPE_MOVABLE_WALL = 5;
     public static final int TYPE_EXIT = 6;
 
+    // Wall faces, named by the side of the tile they are on
+    public static final int FACE_WEST = 0;
+    public static final int FACE_EAST = 1;
+    public static final int FACE_NORTH = 2;
+    public static final int FACE_SOUTH = 3;
+    public static final int NUM_FACES = 4;
+
     public int type;
     public int subtype;
     public int state;
     public int renderState;
-    public int renderVisible;
     private SoftTexture texture;
+    private SoftTexture ceilingTexture;
+    private SoftTexture[] faceTextures;
     private List<Entity> entities;
 
     /* Checks if the tile is solid for collision purposes. */
@@ -51,6 +59,73 @@ public class Tile {
             throw new IllegalArgumentException("Texture not a power of two");
         }
         this.texture = texture;
+        this.faceTextures = null;
+    }
+
+    /**
+     * Gets the texture of a wall face. This is the tile's texture unless the face has its own copy
+     * (for example, with decals).
+     */
+    public SoftTexture getTexture(int face) {
+        if (faceTextures != null && faceTextures[face] != null) {
+            return faceTextures[face];
+        }
+        return texture;
+    }
+
+    /**
+     * Sets the texture of a wall face, or null to use the tile's texture.
+     */
+    public void setFaceTexture(int face, SoftTexture faceTexture) {
+        if (faceTexture != null && (faceTexture.getWidth() != texture.getWidth() ||
+                faceTexture.getHeight() != texture.getHeight())) {
+            throw new IllegalArgumentException("Face texture must be the same size as the tile texture");
+        }
+        if (faceTextures == null) {
+            if (faceTexture == null) {
+                return;
+            }
+            faceTextures = new SoftTexture[NUM_FACES];
+        }
+        faceTextures[face] = faceTexture;
+    }
+
+    public boolean hasFaceTexture(int face) {
+        return faceTextures != null && faceTextures[face] != null;
+    }
+
+    /**
+     * Gets the ceiling texture, or null if the tile is open to the sky.
+     */
+    public SoftTexture getCeilingTexture() {
+        return ceilingTexture;
+    }
+
+    public void setCeilingTexture(SoftTexture ceilingTexture) {
+        if (ceilingTexture != null && !ceilingTexture.isPowerOfTwo()) {
+            throw new IllegalArgumentException("Texture not a power of two");
+        }
+        this.ceilingTexture = ceilingTexture;
+    }
+
+    /**
+     * Copies the type, state and textures of another tile. Entities are not copied.
+     */
+    public void copyFrom(Tile tile) {
+        type = tile.type;
+        subtype = tile.subtype;
+        state = tile.state;
+        renderState = tile.renderState;
+        texture = tile.texture;
+        ceilingTexture = tile.ceilingTexture;
+        if (tile.faceTextures == null) {
+            faceTextures = null;
+        } else {
+            if (faceTextures == null) {
+                faceTextures = new SoftTexture[NUM_FACES];
+            }
+            System.arraycopy(tile.faceTextures, 0, faceTextures, 0, NUM_FACES);
+        }
     }
 
     public void addEntity(Entity entity) {
@@ -73,6 +148,18 @@ public class Tile {
         }
     }
 
+    public void removeAllEntities() {
+        if (entities != null) {
+            for (int i = 0; i < entities.size(); i++) {
+                Entity entity = entities.get(i);
+                if (entity.getTile() == this) {
+                    entity.setTile(null);
+                }
+            }
+            entities.clear();
+        }
+    }
+
     public int getDoorType() {
         if (type == TYPE_DOOR) {
             return subtype & 0x1f;
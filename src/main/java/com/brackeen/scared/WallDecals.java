@@ -0,0 +1,170 @@
+package com.brackeen.scared;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Scorch marks stamped into wall textures. A wall face shares its tile's texture until the first
+ * mark, then gets its own copy (copy-on-write). The number of face copies is capped; when the cap
+ * is reached, the least recently marked face goes back to the shared texture.
+ * <p>
+ * Marks are part of the texture, so they cost nothing to draw. Each mark is stamped into a new copy
+ * of the face texture, so that a texture is never modified after a {@link MapSnapshot} has copied
+ * it and the renderer may be drawing it on another thread.
+ */
+public class WallDecals {
+
+    private static final int MAX_FACE_TEXTURES = 64;
+
+    // Size of a mark, as a fraction of the wall width
+    private static final float MARK_SIZE = 0.125f;
+
+    private static class Face {
+        final Tile tile;
+        final int face;
+
+        Face(Tile tile, int face) {
+            this.tile = tile;
+            this.face = face;
+        }
+    }
+
+    private final Map map;
+    private final Palette palette;
+    private final LinkedHashMap<Integer, Face> faces = new LinkedHashMap<Integer, Face>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<Integer, Face> eldest) {
+            if (size() > MAX_FACE_TEXTURES) {
+                Face face = eldest.getValue();
+                face.tile.setFaceTexture(face.face, null);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * @param palette The palette, if textures are indexed. May be null.
+     */
+    public WallDecals(Map map, Palette palette) {
+        this.map = map;
+        this.palette = palette;
+    }
+
+    /**
+     * Adds a scorch mark where a shot hit a wall.
+     *
+     * @param x The x location of the hit, as returned by {@link Map#getWallCollision(float, float, float)}.
+     * @param y The y location of the hit.
+     * @param z The height of the hit, from 0 (floor) to 1 (ceiling).
+     * @param dx The x direction of the shot.
+     * @param dy The y direction of the shot.
+     */
+    public void addScorchMark(float x, float y, float z, float dx, float dy) {
+        int tileX = (int) x;
+        int tileY = (int) y;
+        Tile tile = map.getTileAt(tileX, tileY);
+        if (tile == null || tile.type != Tile.TYPE_WALL) {
+            return;
+        }
+
+        // The hit is on the tile edge nearest to it
+        int face;
+        float u;
+        int frontX = tileX;
+        int frontY = tileY;
+        if (Math.abs(x - Math.round(x)) < Math.abs(y - Math.round(y))) {
+            face = dx > 0 ? Tile.FACE_WEST : Tile.FACE_EAST;
+            frontX -= dx > 0 ? 1 : -1;
+            u = y - tileY;
+        } else {
+            face = dy > 0 ? Tile.FACE_NORTH : Tile.FACE_SOUTH;
+            frontY -= dy > 0 ? 1 : -1;
+            u = x - tileX;
+        }
+
+        // Faces next to doors are drawn with the door side texture
+        Tile frontTile = map.getTileAt(frontX, frontY);
+        if (frontTile == null || frontTile.type == Tile.TYPE_DOOR) {
+            return;
+        }
+
+        SoftTexture texture = copyFaceTexture(tile, face, tileX + tileY * map.getWidth());
+        // On non-square textures, the mark is stretched like the texture, so it looks round on the wall
+        int radiusX = Math.max(1, Math.round(texture.getWidth() * MARK_SIZE / 2));
+        int radiusY = Math.max(1, Math.round(texture.getHeight() * MARK_SIZE / 2));
+        int centerX = Math.round(u * texture.getWidth());
+        int centerY = Math.round((1 - z) * texture.getHeight());
+        stamp(texture, centerX, centerY, radiusX, radiusY);
+        texture.updateHalfSizeTextures(centerX - radiusX, centerY - radiusY, radiusX * 2 + 1, radiusY * 2 + 1, palette);
+    }
+
+    public int getNumFaceTextures() {
+        return faces.size();
+    }
+
+    /**
+     * Gets the number of bytes used by the pixels of the face textures, including their half-size
+     * textures.
+     */
+    public long getMemoryUsage() {
+        long bytes = 0;
+        for (Face face : faces.values()) {
+            if (face.tile.hasFaceTexture(face.face)) {
+                bytes += face.tile.getTexture(face.face).getMemoryUsage();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Sets the face texture to a copy of its current texture, and returns the copy.
+     */
+    private SoftTexture copyFaceTexture(Tile tile, int face, int tileIndex) {
+        Integer key = tileIndex * Tile.NUM_FACES + face;
+        Face entry = faces.get(key); // Marks the face as recently used
+        tile.setFaceTexture(face, tile.getTexture(face).copy());
+        if (entry == null) {
+            faces.put(key, new Face(tile, face));
+        }
+        return tile.getTexture(face);
+    }
+
+    /**
+     * Darkens a rough ellipse, darkest at the center.
+     */
+    private void stamp(SoftTexture texture, int centerX, int centerY, int radiusX, int radiusY) {
+        int width = texture.getWidth();
+        int height = texture.getHeight();
+        int[] data = texture.getData();
+        byte[] indexedData = texture.getIndexedData();
+        int[] colors = palette != null ? palette.getColors() : null;
+        int x1 = Math.max(0, centerX - radiusX);
+        int y1 = Math.max(0, centerY - radiusY);
+        int x2 = Math.min(width - 1, centerX + radiusX);
+        int y2 = Math.min(height - 1, centerY + radiusY);
+        for (int y = y1; y <= y2; y++) {
+            for (int x = x1; x <= x2; x++) {
+                float dx = (float) (x - centerX) / radiusX;
+                float dy = (float) (y - centerY) / radiusY;
+                float dist = (float) Math.sqrt(dx * dx + dy * dy);
+                // Rough edges
+                dist += (float) (Math.random() * 0.4 - 0.2);
+                if (dist >= 1) {
+                    continue;
+                }
+                int offset = x + y * width;
+                int color = indexedData != null ? colors[indexedData[offset] & 0xff] : data[offset];
+                int brightness = 96 + (int) (160 * dist);
+                int r = (((color >> 16) & 0xff) * brightness) >> 8;
+                int g = (((color >> 8) & 0xff) * brightness) >> 8;
+                int b = ((color & 0xff) * brightness) >> 8;
+                color = (color & 0xff000000) | (r << 16) | (g << 8) | b;
+                if (indexedData != null) {
+                    indexedData[offset] = (byte) palette.getIndex(color);
+                } else {
+                    data[offset] = color;
+                }
+            }
+        }
+    }
+}
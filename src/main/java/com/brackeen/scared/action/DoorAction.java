@@ -54,6 +54,7 @@ public class DoorAction implements Action {
         tile.state = state;
         startRenderState = tile.renderState;
         ticks = 0;
+        map.markDirty(x, y);
     }
 
     @Override
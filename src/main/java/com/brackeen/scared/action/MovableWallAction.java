@@ -71,6 +71,8 @@ public class MovableWallAction implements Action {
             tile.subtype = 0;
             tile.state = STATE_DONE;
             tile.renderState = 0;
+            map.markDirty(x, y);
+            map.getLightGrid().updateTile(x, y);
 
             x += dx;
             y += dy;
@@ -81,6 +83,8 @@ public class MovableWallAction implements Action {
             tile.subtype = 0;
             tile.state = STATE_MOVING;
             tile.renderState = 0;
+            map.markDirty(x, y);
+            map.getLightGrid().updateTile(x, y);
 
             if (index == 2) {
                 index = 3;
@@ -13,6 +13,8 @@ public class BlastMark extends Entity {
         this.countdown = countdown;
         setTexture(textures[0]);
         setZ(0.5f - getTexture().getHeight() / 2 * getTextureScale());
+        // Bring it forward a bit so that it appears in front of walls
+        setDepthBias(getTexture().getWidth() * getTextureScale());
     }
 
     @Override
@@ -27,11 +29,4 @@ public class BlastMark extends Entity {
             delete();
         }
     }
-
-    @Override
-    public void setDistanceFromCamera(float distanceFromCamera) {
-        // Bring it forward a bit so that it appears in front of walls
-        float extraDist = getTexture().getWidth() * getTextureScale();
-        super.setDistanceFromCamera(distanceFromCamera - extraDist);
-    }
 }
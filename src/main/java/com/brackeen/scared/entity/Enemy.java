@@ -252,6 +252,7 @@ public class Enemy extends Entity {
                     setState(STATE_TERMINATE);
                 } else if (ticksRemaining <= 0) {
                     playSound3D("/sound/laser0.wav", 1.5f, 0.5f);
+                    map.getLightGrid().addFlash(getX(), getY(), 3, 128, 8);
                     stats.numEnemyShotsFired++;
 
                     // fire shot
@@ -3,7 +3,7 @@ package com.brackeen.scared.entity;
 import com.brackeen.scared.SoftTexture;
 import com.brackeen.scared.Tile;
 
-public class Entity implements Comparable<Entity> {
+public class Entity {
 
     public static final int DEFAULT_PIXELS_PER_TILE = 64;
 
@@ -12,11 +12,11 @@ public class Entity implements Comparable<Entity> {
     private float x;
     private float y;
     private float z;
-    private float distanceFromCamera;
     private boolean deleted;
     private float direction; // degrees
     private SoftTexture texture;
     private float textureScale = 1f / DEFAULT_PIXELS_PER_TILE;
+    private float depthBias; // tiles
 
     public Entity(float radius, float x, float y) {
         setRadius(radius);
@@ -47,12 +47,15 @@ public class Entity implements Comparable<Entity> {
         this.textureScale = textureScale;
     }
 
-    public float getDistanceFromCamera() {
-        return distanceFromCamera;
+    /**
+     * Gets how much closer to the camera the entity is drawn than its location, in tiles.
+     */
+    public float getDepthBias() {
+        return depthBias;
     }
 
-    public void setDistanceFromCamera(float distanceFromCamera) {
-        this.distanceFromCamera = distanceFromCamera;
+    public void setDepthBias(float depthBias) {
+        this.depthBias = depthBias;
     }
 
     public float getRadius() {
@@ -136,14 +139,4 @@ public class Entity implements Comparable<Entity> {
         }
         return false;
     }
-
-    // Sort back-to-front
-    public int compareTo(Entity t) {
-        if (distanceFromCamera < t.distanceFromCamera) {
-            return 1;
-        } else if (distanceFromCamera > t.distanceFromCamera) {
-            return -1;
-        }
-        return 0;
-    }
 }
@@ -0,0 +1,129 @@
+package com.brackeen.app.view;
+
+import com.brackeen.app.BitmapFont;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks the text of a NumberLabel, and that it is only rebuilt when the displayed value changes.
+ */
+public class NumberLabelTest {
+
+    private static final int CHAR_WIDTH = 8;
+
+    private static final BitmapFont FONT = new BitmapFont(
+            new BufferedImage(CHAR_WIDTH * 96, 8, BufferedImage.TYPE_INT_ARGB), CHAR_WIDTH, ' ');
+
+    @Test
+    public void integers() {
+        NumberLabel label = new NumberLabel(FONT);
+        assertText("0", label);
+        label.setValue(7);
+        assertText("7", label);
+        label.setValue(1230);
+        assertText("1230", label);
+        label.setValue(-45);
+        assertText("-45", label);
+        label.setValue(0);
+        assertText("0", label);
+        label.setValue(Integer.MAX_VALUE);
+        assertText("2147483647", label);
+        label.setValue(Integer.MIN_VALUE);
+        assertText("-2147483648", label);
+    }
+
+    @Test
+    public void oneFractionDigit() {
+        NumberLabel label = new NumberLabel(FONT, "", "", 1);
+        assertText("0.0", label);
+        label.setValue(3);
+        assertText("3.0", label);
+        label.setValue(12.5f);
+        assertText("12.5", label);
+        label.setValue(0.5f);
+        assertText("0.5", label);
+        label.setValue(-0.5f);
+        assertText("-0.5", label);
+        label.setValue(-12.5f);
+        assertText("-12.5", label);
+        label.setValue(0.01f);
+        assertText("0.0", label);
+        label.setValue(9.96f);
+        assertText("10.0", label);
+    }
+
+    @Test
+    public void roundsHalfUp() {
+        // Values that are exact in binary, so the halves aren't rounding noise
+        NumberLabel label = new NumberLabel(FONT);
+        label.setValue(2.5f);
+        assertText("3", label);
+        label.setValue(2.49f);
+        assertText("2", label);
+        label.setValue(-2.5f);
+        assertText("-2", label);
+        label.setValue(-2.51f);
+        assertText("-3", label);
+        label.setValue(-0.5f);
+        assertText("0", label);
+
+        label = new NumberLabel(FONT, "", "", 1);
+        label.setValue(0.25f);
+        assertText("0.3", label);
+        label.setValue(1.75f);
+        assertText("1.8", label);
+        label.setValue(-0.25f);
+        assertText("-0.2", label);
+    }
+
+    @Test
+    public void prefixAndSuffix() {
+        NumberLabel label = new NumberLabel(FONT, "Ammo ", "%", 0);
+        label.setValue(50);
+        assertText("Ammo 50%", label);
+        label.setPrefix("HP ");
+        assertText("HP 50%", label);
+        label.setSuffix("");
+        assertText("HP 50", label);
+        label.setPrefix("");
+        label.setSuffix(" left");
+        assertText("50 left", label);
+        label.setValue(-1);
+        assertText("-1 left", label);
+
+        // Longer than the buffer used for the previous text
+        label.setPrefix("A much longer prefix: ");
+        assertText("A much longer prefix: -1 left", label);
+    }
+
+    @Test
+    public void unchangedValueKeepsText() {
+        NumberLabel label = new NumberLabel(FONT, "Score ", "", 1);
+        label.setValue(12.5f);
+        String text = label.getText();
+        label.setValue(12.5f);
+        assertSame(text, label.getText());
+        label.setValue(12.54f);
+        assertSame(text, label.getText());
+        label.setPrefix("Score ");
+        assertSame(text, label.getText());
+        label.setSuffix("");
+        assertSame(text, label.getText());
+
+        label.setValue(12.56f);
+        assertText("Score 12.6", label);
+        text = label.getText();
+        label.setValue(12.6f);
+        assertSame(text, label.getText());
+    }
+
+    private static void assertText(String expected, NumberLabel label) {
+        assertEquals(expected, label.getText());
+        assertEquals(FONT.getStringWidth(expected), (long) label.getWidth());
+        assertEquals(FONT.getHeight(), (long) label.getHeight());
+    }
+}
@@ -0,0 +1,185 @@
+package com.brackeen.scared;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that textures survive a trip through the cache file, and that a damaged or out-of-date
+ * cache falls back to processing the texture again.
+ */
+public class BakedTextureCacheTest {
+
+    private static final String NAME = "wall00.png";
+    private static final BakedTextureCache.Source SOURCE = new BakedTextureCache.Source(1234, 5678);
+    private static final String RECIPE = "WEIGHTED_EVEN,AVERAGE,3";
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("scared-test").toFile();
+        file = new File(dir, "textures.cache");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void roundTrip() {
+        SoftTexture texture = createTexture();
+        save(texture);
+
+        BakedTextureCache cache = new BakedTextureCache(file);
+        cache.load();
+        SoftTexture heapTexture = cache.get(NAME, SOURCE, RECIPE, false);
+        assertTextureEquals(texture, heapTexture);
+        assertFalse(heapTexture.isOffHeap());
+        SoftTexture offHeapTexture = cache.get(NAME, SOURCE, RECIPE, true);
+        assertTextureEquals(texture, offHeapTexture);
+        assertTrue(offHeapTexture.isOffHeap());
+        assertTrue(offHeapTexture.getCreatedHalfSizeTexture().isOffHeap());
+    }
+
+    @Test
+    public void unchangedEntriesAreKept() {
+        SoftTexture texture = createTexture();
+        save(texture);
+
+        BakedTextureCache cache = new BakedTextureCache(file);
+        cache.load();
+        cache.put("other.png", SOURCE, RECIPE, createTexture());
+        cache.save();
+
+        cache = new BakedTextureCache(file);
+        cache.load();
+        assertTextureEquals(texture, cache.get(NAME, SOURCE, RECIPE, false));
+        assertNotNull(cache.get("other.png", SOURCE, RECIPE, false));
+    }
+
+    @Test
+    public void outOfDateEntriesAreIgnored() {
+        save(createTexture());
+
+        BakedTextureCache cache = new BakedTextureCache(file);
+        cache.load();
+        assertNull(cache.get(NAME, new BakedTextureCache.Source(1234, 5679), RECIPE, false));
+        assertNull(cache.get(NAME, new BakedTextureCache.Source(1235, 5678), RECIPE, false));
+        assertNull(cache.get(NAME, SOURCE, "AVERAGE,AVERAGE,3", false));
+        assertNull(cache.get("wall01.png", SOURCE, RECIPE, false));
+    }
+
+    @Test
+    public void damagedPayloadFallsBack() throws IOException {
+        SoftTexture texture = createTexture();
+        save(texture);
+
+        // Change one byte of the last pixels
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = raf.length() - 12;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x10);
+        }
+
+        BakedTextureCache cache = new BakedTextureCache(file);
+        cache.load();
+        assertNull(cache.get(NAME, SOURCE, RECIPE, false));
+
+        // The texture is processed again and replaces the damaged entry
+        cache.put(NAME, SOURCE, RECIPE, texture);
+        cache.save();
+        assertTextureEquals(texture, cache.get(NAME, SOURCE, RECIPE, false));
+    }
+
+    @Test
+    public void damagedFileFallsBack() throws IOException {
+        SoftTexture texture = createTexture();
+        save(texture);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        // Truncated
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        BakedTextureCache cache = new BakedTextureCache(file);
+        cache.load();
+        assertNull(cache.get(NAME, SOURCE, RECIPE, false));
+
+        // Garbage
+        byte[] garbage = new byte[bytes.length];
+        new Random(1).nextBytes(garbage);
+        Files.write(file.toPath(), garbage);
+        cache = new BakedTextureCache(file);
+        cache.load();
+        assertNull(cache.get(NAME, SOURCE, RECIPE, false));
+
+        cache.put(NAME, SOURCE, RECIPE, texture);
+        cache.save();
+        cache = new BakedTextureCache(file);
+        cache.load();
+        assertTextureEquals(texture, cache.get(NAME, SOURCE, RECIPE, false));
+    }
+
+    private void save(SoftTexture texture) {
+        BakedTextureCache cache = new BakedTextureCache(file);
+        cache.load();
+        cache.put(NAME, SOURCE, RECIPE, texture);
+        cache.save();
+    }
+
+    /**
+     * Creates a 16x8 texture with one half-size texture created and one still lazy.
+     */
+    private static SoftTexture createTexture() {
+        SoftTexture texture = new SoftTexture(16, 8);
+        int[] data = texture.getData();
+        Random random = new Random(2);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt();
+        }
+        texture.setLazyHalfSizeTextures(2, SoftTexture.DownscaleType.WEIGHTED_EVEN,
+                SoftTexture.DownscaleType.AVERAGE);
+        texture.getHalfSizeTexture();
+        return texture;
+    }
+
+    private static void assertTextureEquals(SoftTexture expected, SoftTexture actual) {
+        assertNotNull(actual);
+        while (expected != null) {
+            assertEquals(expected.getWidth(), actual.getWidth());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            assertSame(expected.getDownscaleType(), actual.getDownscaleType());
+            assertEquals(expected.getLazyLevels(), actual.getLazyLevels());
+            int numPixels = expected.getWidth() * expected.getHeight();
+            for (int i = 0; i < numPixels; i++) {
+                assertEquals("Pixel " + i, expected.getPixel(i), actual.getPixel(i));
+            }
+            expected = expected.getCreatedHalfSizeTexture();
+            actual = actual.getCreatedHalfSizeTexture();
+        }
+        assertNull(actual);
+    }
+}
@@ -0,0 +1,126 @@
+package com.brackeen.scared;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the packed pixel kernels give the same results as the scalar versions.
+ */
+public class PixelKernelsTest {
+
+    private static final int NORMAL_SHADE = 256;
+    private static final int MAX_SHADE = 511;
+    private static final int RANDOM_ITERATIONS = 200000;
+
+    private static final int[] EDGE_COLORS = {
+            0x00000000, 0xffffffff, 0xff000000, 0x00ffffff, 0xffff0000, 0xff00ff00, 0xff0000ff,
+            0x80808080, 0x7f7f7f7f, 0x01010101, 0xfefefefe, 0x00ff00ff, 0x12345678, 0x87654321,
+            0xdeadbeef,
+    };
+
+    private static final int[] EDGE_SHADES = {
+            0, 1, 2, 127, 128, 255, NORMAL_SHADE, NORMAL_SHADE + 1, 384, MAX_SHADE - 1, MAX_SHADE,
+    };
+
+    private static final int[] EDGE_ALPHAS = { 0, 1, 127, 128, 254, 255 };
+
+    @Test
+    public void shadeMatchesScalar() {
+        for (int color : EDGE_COLORS) {
+            for (int shade : EDGE_SHADES) {
+                assertShade(color, shade);
+            }
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < RANDOM_ITERATIONS; i++) {
+            assertShade(random.nextInt(), random.nextInt(MAX_SHADE + 1));
+        }
+    }
+
+    @Test
+    public void shadeClampsAboveNormal() {
+        assertEquals(0xffffffff, PixelKernels.shade(0xffffffff, MAX_SHADE));
+        assertEquals(0xff0000ff, PixelKernels.shade(0x000000c0, 2 * NORMAL_SHADE));
+    }
+
+    @Test
+    public void blendMatchesScalar() {
+        for (int src : EDGE_COLORS) {
+            for (int dst : EDGE_COLORS) {
+                for (int alpha : EDGE_ALPHAS) {
+                    assertBlend(src, dst, alpha);
+                }
+            }
+        }
+        Random random = new Random(2);
+        for (int i = 0; i < RANDOM_ITERATIONS; i++) {
+            assertBlend(random.nextInt(), random.nextInt(), random.nextInt(256));
+        }
+    }
+
+    @Test
+    public void averageMatchesScalar() {
+        for (int c1 : EDGE_COLORS) {
+            for (int c2 : EDGE_COLORS) {
+                assertAverage(c1, c2, c1, c2);
+                assertAverage(c1, c1, c1, c2);
+                assertAverage(c1, c2, c2, c2);
+            }
+        }
+        Random random = new Random(3);
+        for (int i = 0; i < RANDOM_ITERATIONS; i++) {
+            assertAverage(random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt());
+        }
+    }
+
+    @Test
+    public void convertIndexedMatchesLookup() {
+        int[] colors = new int[256];
+        Random random = new Random(4);
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt();
+        }
+        byte[] src = new byte[512];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) i;
+        }
+        int[] expected = new int[src.length];
+        for (int i = 0; i < src.length; i++) {
+            expected[i] = colors[src[i] & 0xff];
+        }
+
+        int[] dst = new int[src.length];
+        PixelKernels.convertIndexed(src, dst, colors);
+        assertArrayEquals(expected, dst);
+
+        // Converts only as many pixels as fit
+        int[] shortDst = new int[100];
+        PixelKernels.convertIndexed(src, shortDst, colors);
+        for (int i = 0; i < shortDst.length; i++) {
+            assertEquals(expected[i], shortDst[i]);
+        }
+    }
+
+    private static void assertShade(int color, int shade) {
+        assertEquals("shade " + Integer.toHexString(color) + " by " + shade,
+                PixelKernels.shadeScalar(color, shade), PixelKernels.shade(color, shade));
+    }
+
+    private static void assertBlend(int src, int dst, int alpha) {
+        assertEquals("blend " + Integer.toHexString(src) + " over " + Integer.toHexString(dst) + " at " + alpha,
+                PixelKernels.blendScalar(src, dst, alpha), PixelKernels.blend(src, dst, alpha));
+    }
+
+    private static void assertAverage(int c1, int c2, int c3, int c4) {
+        String colors = Integer.toHexString(c1) + " " + Integer.toHexString(c2) + " " +
+                Integer.toHexString(c3) + " " + Integer.toHexString(c4);
+        assertEquals("average " + colors, PixelKernels.averageScalar(c1, c2, c3, c4),
+                PixelKernels.average(c1, c2, c3, c4));
+        assertEquals("weightedAverage " + colors, PixelKernels.weightedAverageScalar(c1, c2, c3, c4),
+                PixelKernels.weightedAverage(c1, c2, c3, c4));
+    }
+}